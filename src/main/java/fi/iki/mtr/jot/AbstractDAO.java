@@ -35,28 +35,336 @@
 package fi.iki.mtr.jot;
 
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public abstract class AbstractDAO {
     protected static Logger log = LoggerFactory.getLogger(AbstractDAO.class);
+
+    /** Releases the connections of unclosed transaction executors. */
+    private static final Cleaner cleaner = Cleaner.create();
     private ConnectionManager connectionManager;
 
+    /** The executor service for asynchronous operations. */
+    private ExecutorService asyncService;
+
+    /** Admission control for pending asynchronous operations. */
+    private Semaphore asyncPermits;
+
+    /**
+     * The default query timeout in seconds for all executors, or 0
+     * for no timeout.
+     */
+    private volatile int defaultQueryTimeout;
+
+    /** The SQL dialect or <tt>null</tt> to detect it. */
+    private volatile Mapper.Dialect dialect;
+
+    /** Optional statement statistics of the DAO's executors. */
+    private volatile QueryStatistics statistics;
+
+    /** The cancellation handle of the current thread's operations. */
+    private static final ThreadLocal<Cancellation> cancellation
+        = new ThreadLocal<>();
+
+    /** The maximum number of transaction retries. */
+    private int txMaxRetries = 3;
+
+    /** The base delay in milliseconds of transaction retry backoff. */
+    private long txBaseDelay = 50;
+
+    /** The maximum delay in milliseconds of transaction retry backoff. */
+    private long txMaxDelay = 2000;
+
     protected AbstractDAO(ConnectionManager connectionManager) {
         this.connectionManager = connectionManager;
     }
 
+    /**
+     * Sets the default query timeout of the DAO's executors.
+     *
+     * @param seconds the timeout in seconds or 0 for no timeout.
+     */
+    protected void setDefaultQueryTimeout(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + seconds);
+        }
+        defaultQueryTimeout = seconds;
+    }
+
+    /**
+     * Sets the SQL dialect of the DAO's upsert statements. By default
+     * the dialect is detected from the database product name.
+     *
+     * @param dialect the dialect or <tt>null</tt> to detect it.
+     */
+    protected void setDialect(Mapper.Dialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Sets the statement statistics registry. The same registry can
+     * be shared between DAOs.
+     *
+     * @param statistics the statistics registry or <tt>null</tt> to
+     * disable statistics.
+     */
+    protected void setStatistics(QueryStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    protected QueryStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Cancellation handle for database operations. Cancelling the
+     * handle cancels the running statement of the operations run with
+     * the handle, and makes their further statements fail.
+     */
+    public static class Cancellation {
+        private Statement stmt;
+        private boolean cancelled;
+
+        /**
+         * Cancels the operation. The running statement is cancelled
+         * while holding the lock so that it can't be ended and its
+         * connection reused by another operation in between.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (stmt != null) {
+                try {
+                    stmt.cancel();
+                } catch (SQLException e) {
+                    log.warn("Failed to cancel statement", e);
+                }
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized void begin(Statement stmt) throws SQLException {
+            if (cancelled) {
+                throw new SQLException("Operation cancelled", "57014");
+            }
+            this.stmt = stmt;
+        }
+
+        /**
+         * Ends the running statement.
+         *
+         * @return the statement if it was cancelled and <tt>null</tt>
+         * otherwise.
+         */
+        synchronized Statement end() {
+            Statement running = stmt;
+            stmt = null;
+            return cancelled ? running : null;
+        }
+    }
+
+    /**
+     * Runs the task so that its database operations can be cancelled
+     * with the cancellation handle from other threads.
+     *
+     * @param c the cancellation handle.
+     * @param task the task to run.
+     * @return the task result.
+     * @throws IOException if the task fails or it is cancelled.
+     */
+    protected <R> R runCancellable(Cancellation c, AsyncTask<R> task)
+        throws IOException {
+        Cancellation prev = cancellation.get();
+        cancellation.set(c);
+        try {
+            return task.run();
+        } finally {
+            if (prev == null) {
+                cancellation.remove();
+            } else {
+                cancellation.set(prev);
+            }
+        }
+    }
+
+    /**
+     * Sets the executor service for asynchronous operations.
+     *
+     * @param service the executor service.
+     * @param maxPending the maximum number of submitted operations
+     * which have not completed. Operations over the limit are
+     * rejected.
+     */
+    protected synchronized void setAsyncService(ExecutorService service,
+                                                int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Invalid pending limit: "
+                                               + maxPending);
+        }
+        asyncService = service;
+        asyncPermits = new Semaphore(maxPending);
+    }
+
+    /**
+     * Gets the executor service for asynchronous operations. If no
+     * service is set, this creates a virtual thread per task executor
+     * when the runtime supports it, and otherwise a fixed pool of
+     * daemon threads sized to the connection pool. The number of
+     * pending operations is limited to 16 per pooled connection.
+     */
+    private synchronized ExecutorService getAsyncService() {
+        if (asyncService == null) {
+            int poolSize = connectionManager.getPoolSize();
+            setAsyncService(makeAsyncService(poolSize), poolSize * 16);
+        }
+        return asyncService;
+    }
+
+    private static ExecutorService makeAsyncService(int poolSize) {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            /* Virtual threads are not available. */
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool
+            = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                                     new LinkedBlockingQueue<Runnable>(),
+                                     new ThreadFactory() {
+                                         @Override
+                                         public Thread newThread(Runnable r) {
+                                             Thread t = new Thread(
+                                                 r, "jot-async-"
+                                                 + count.incrementAndGet());
+                                             t.setDaemon(true);
+                                             return t;
+                                         }
+                                     });
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /** An asynchronous database operation. */
+    protected interface AsyncTask<R> {
+        R run() throws IOException;
+    }
+
+    /**
+     * Runs the task asynchronously on the DAO's executor service.
+     *
+     * @param task the task to run.
+     * @return the future for the task result. The future fails with
+     * <tt>RejectedExecutionException</tt> if the number of pending
+     * operations is at its limit. Cancelling the future cancels the
+     * task's running statement.
+     */
+    protected <R> CompletableFuture<R> runAsync(final AsyncTask<R> task) {
+        ExecutorService service = getAsyncService();
+        final Semaphore permits;
+        synchronized (this) {
+            permits = asyncPermits;
+        }
+
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        if (!permits.tryAcquire()) {
+            future.completeExceptionally(
+                new RejectedExecutionException("Too many pending operations"));
+            return future;
+        }
+
+        final Cancellation c = new Cancellation();
+        try {
+            /* The permit is released by the task itself and not when
+               the future completes, since a cancelled future completes
+               while its statement may still be running. The task is
+               run even if the future was cancelled before it started
+               so that the permit is always released. */
+            service.execute(() -> {
+                    try {
+                        if (!c.isCancelled()) {
+                            future.complete(runCancellable(c, task));
+                        }
+                    } catch (IOException e) {
+                        future.completeExceptionally(
+                            new CompletionException(e));
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            future.whenComplete((r, e) -> {
+                    if (future.isCancelled()) {
+                        c.cancel();
+                    }
+                });
+            return future;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Shuts down the executor service of asynchronous operations.
+     */
+    protected synchronized void shutdownAsync() {
+        if (asyncService != null) {
+            asyncService.shutdown();
+            asyncService = null;
+        }
+    }
+
     protected class Executor<T> {
         private Class<?> cls;
         private boolean debug;
 
+        /** The maximum number of objects in batch operations. */
+        private int batchSize = 1000;
+
+        /**
+         * The query timeout in seconds or -1 to use the DAO's default
+         * timeout.
+         */
+        private int queryTimeout = -1;
+
         /**
          * An optional connection instance to be used for operations.
          * If this is unset, each operation will allocate and release
@@ -67,6 +375,36 @@ public abstract class AbstractDAO {
         /** The auto-generated key for the latest insert operation. */
         public int generatedKey;
 
+        /** An optional cache for objects selected by their IDs. */
+        private EntityCache<T> entityCache;
+
+        /**
+         * The IDs of objects written in the current transaction. They
+         * are invalidated again when the transaction ends.
+         */
+        private HashSet<Object> txIds;
+
+        /**
+         * Has the current transaction run raw updates which may have
+         * changed any object?
+         */
+        private boolean txClear;
+
+        /**
+         * Has the persistent connection been used after the last
+         * commit or rollback?
+         */
+        boolean txPending;
+
+        /** An optional cache for select results. */
+        private QueryCache queryCache;
+
+        /**
+         * Tells whether the current transaction has written to the
+         * table of this executor.
+         */
+        private boolean txWrites;
+
         public Executor(Class<?> cls) {
             this.cls = cls;
         }
@@ -75,13 +413,242 @@ public abstract class AbstractDAO {
             this.debug = debug;
         }
 
+        /**
+         * Sets the query timeout of the executor's statements.
+         *
+         * @param seconds the timeout in seconds, 0 for no timeout, or
+         * -1 to use the DAO's default timeout.
+         */
+        public void setQueryTimeout(int seconds) {
+            if (seconds < -1) {
+                throw new IllegalArgumentException("Invalid timeout: "
+                                                   + seconds);
+            }
+            queryTimeout = seconds;
+        }
+
+        private int getQueryTimeout() {
+            return queryTimeout >= 0 ? queryTimeout : defaultQueryTimeout;
+        }
+
+        /**
+         * Prepares the statement for execution with the query timeout
+         * and registers it with the thread's cancellation handle.
+         */
+        private void beginStatement(Statement stmt, int timeout)
+            throws SQLException {
+            stmt.setQueryTimeout(timeout);
+
+            Cancellation c = cancellation.get();
+            if (c != null) {
+                c.begin(stmt);
+            }
+        }
+
+        private void beginStatement(Statement stmt) throws SQLException {
+            beginStatement(stmt, getQueryTimeout());
+        }
+
+        /**
+         * Ends the statement execution. A cancelled statement is
+         * removed from the connection's statement cache so the
+         * connection is recycled without it.
+         */
+        private void endStatement(CachedConnection conn) {
+            Cancellation c = cancellation.get();
+            if (c == null) {
+                return;
+            }
+            Statement cancelled = c.end();
+            if (cancelled != null && conn != null) {
+                conn.evictStatement(cancelled);
+            }
+        }
+
+        /**
+         * Records the statement execution to the DAO's statistics.
+         *
+         * @param query the SQL statement.
+         * @param start the execution start time from
+         * <tt>System.nanoTime</tt>.
+         * @param rows the number of rows returned or updated.
+         * @param params the statement parameters or <tt>null</tt>.
+         */
+        private void record(String query, long start, int rows,
+                            Object[] params) {
+            record(query, start, rows, null, null, false, params);
+        }
+
+        /**
+         * Records the statement execution to the DAO's statistics.
+         * The parameters logged for slow statements are the ones
+         * <tt>Mapper.bindSqlParams</tt> binds with the same arguments.
+         *
+         * @param query the SQL statement.
+         * @param start the execution start time from
+         * <tt>System.nanoTime</tt>.
+         * @param rows the number of rows returned or updated.
+         * @param obj the object bound to the statement or
+         * <tt>null</tt>.
+         * @param columns the bound columns or <tt>null</tt> if all
+         * columns were bound.
+         * @param appendId specifies if the object ID was bound after
+         * the columns.
+         * @param params the parameters bound after the object or
+         * <tt>null</tt>.
+         */
+        private void record(String query, long start, int rows, Object obj,
+                            BitSet columns, boolean appendId,
+                            Object[] params) {
+            QueryStatistics stats = statistics;
+            if (stats == null) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+
+            stats.record(query, nanos, rows);
+            if (!stats.isSlow(nanos)) {
+                return;
+            }
+
+            String values;
+            if (obj != null) {
+                try {
+                    values = Arrays.deepToString(
+                        Mapper.toSqlParams(obj, columns, appendId, params));
+                } catch (MapperException e) {
+                    values = obj.toString();
+                }
+            } else if (params != null) {
+                values = Arrays.deepToString(params);
+            } else {
+                values = "[]";
+            }
+            stats.logSlow(query, nanos, rows, values);
+        }
+
+        public void setBatchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Invalid batch size: "
+                                                   + batchSize);
+            }
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Sets the entity cache for the <tt>get</tt> operation. The
+         * write operations of this executor invalidate the cached
+         * objects they modify. The same cache instance should be set
+         * to all executors of the class.
+         *
+         * @param entityCache the entity cache or <tt>null</tt> to
+         * disable caching.
+         */
+        public void setEntityCache(EntityCache<T> entityCache) {
+            this.entityCache = entityCache;
+        }
+
+        public EntityCache<T> getEntityCache() {
+            return entityCache;
+        }
+
+        /**
+         * Sets the query cache for the <tt>select</tt> operation. The
+         * select results are assumed to read from the table of the
+         * executor class and all write operations of this executor
+         * invalidate the table's cached results. Queries joining
+         * other tables are not invalidated when those tables change.
+         *
+         * @param queryCache the query cache or <tt>null</tt> to
+         * disable caching.
+         */
+        public void setQueryCache(QueryCache queryCache) {
+            this.queryCache = queryCache;
+        }
+
+        public QueryCache getQueryCache() {
+            return queryCache;
+        }
+
+        private void invalidate(T obj) throws MapperException {
+            if (entityCache != null) {
+                Object id = Mapper.getId(obj);
+                entityCache.invalidate(id);
+                if (persistentConnection != null) {
+                    if (txIds == null) {
+                        txIds = new HashSet<>();
+                    }
+                    txIds.add(id);
+                }
+            }
+        }
+
+        /**
+         * Invalidates all cached objects. Raw update statements can
+         * change any row so their objects can't be invalidated one by
+         * one.
+         */
+        private void invalidateAll() {
+            if (entityCache != null) {
+                entityCache.clear();
+                if (persistentConnection != null) {
+                    txClear = true;
+                }
+            }
+        }
+
+        /**
+         * Invalidates the cache entries of the objects and the queries
+         * written in the transaction after it has been committed or
+         * rolled back. Other threads may have cached the old rows
+         * between the writes and the end of the transaction.
+         */
+        void endTransaction() {
+            if (txClear && entityCache != null) {
+                entityCache.clear();
+            } else if (txIds != null && entityCache != null) {
+                for (Object id : txIds) {
+                    entityCache.invalidate(id);
+                }
+            }
+            txIds = null;
+            txClear = false;
+
+            if (txWrites && queryCache != null) {
+                try {
+                    queryCache.invalidate(Mapper.getTableName(cls));
+                } catch (MapperException e) {
+                    log.error("Mapper error", e);
+                }
+            }
+            txWrites = false;
+        }
+
+        private void invalidateQueries() throws MapperException {
+            if (queryCache != null) {
+                queryCache.invalidate(Mapper.getTableName(cls));
+                if (persistentConnection != null) {
+                    txWrites = true;
+                }
+            }
+        }
+
         private CachedConnection getConnection() throws SQLException {
             if (persistentConnection != null) {
+                txPending = true;
                 return persistentConnection;
             }
             return connectionManager.getConnection();
         }
 
+        private CachedConnection getReadConnection() throws SQLException {
+            if (persistentConnection != null) {
+                txPending = true;
+                return persistentConnection;
+            }
+            return connectionManager.getReadConnection();
+        }
+
         private void recycleConnection(CachedConnection conn) {
             if (conn == null || persistentConnection != null) {
                 return;
@@ -89,74 +656,687 @@ public abstract class AbstractDAO {
             connectionManager.recycle(conn);
         }
 
-        public List<T> select(String query, Object[] params)
+        public List<T> select(String query, Object[] params)
+            throws IOException {
+            return select(query, params, getQueryTimeout());
+        }
+
+        /**
+         * Selects objects with the query timeout.
+         *
+         * @param query the SQL query.
+         * @param params the query parameters.
+         * @param timeout the query timeout in seconds or 0 for no
+         * timeout.
+         * @return the selected objects.
+         * @throws IOException if the select fails or times out.
+         */
+        public List<T> select(String query, Object[] params, int timeout)
+            throws IOException {
+            return select(query, params, timeout, null);
+        }
+
+        private List<T> select(final String query, final Object[] params,
+                               final int timeout,
+                               final Mapper.Projection projection)
+            throws IOException {
+
+            // Transactions see uncommitted rows which must not be
+            // shared with other threads.
+            if (queryCache == null || persistentConnection != null) {
+                return doSelect(query, params, timeout, projection);
+            }
+
+            try {
+                return queryCache.get(Mapper.getTableName(cls), query, params,
+                                      new QueryCache.Loader<T>() {
+                                          @Override
+                                          public List<T> load()
+                                              throws IOException {
+                                              return doSelect(query, params,
+                                                              timeout,
+                                                              projection);
+                                          }
+                                      });
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
+        }
+
+        private List<T> doSelect(String query, Object[] params, int timeout,
+                                 Mapper.Projection projection)
+            throws IOException {
+            return doSelect(query, params, timeout, projection, false);
+        }
+
+        /**
+         * Selects objects.
+         *
+         * @param query the SQL query.
+         * @param params the query parameters.
+         * @param timeout the query timeout in seconds or 0 for no
+         * timeout.
+         * @param projection the projection to read or <tt>null</tt> to
+         * read all fields.
+         * @param primary specifies if the query must run on the primary
+         * connection instead of a read connection.
+         * @return the selected objects.
+         * @throws IOException if the select fails or times out.
+         */
+        private List<T> doSelect(String query, Object[] params, int timeout,
+                                 Mapper.Projection projection,
+                                 boolean primary)
+            throws IOException {
+
+            CachedConnection conn = null;
+            ResultSet rs = null;
+            try {
+                conn = primary ? getConnection() : getReadConnection();
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt, timeout);
+
+                if (params != null) {
+                    for (int i = 0; i < params.length; i++) {
+                        stmt.setObject(i + 1, params[i]);
+                    }
+                }
+
+                if (debug) {
+                    log.debug("query={}, params={}", query,
+                              Arrays.deepToString(params));
+                }
+
+                long start = System.nanoTime();
+                ArrayList<T> result = new ArrayList<>();
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    if (projection == null) {
+                        result.add((T) Mapper.read(cls.newInstance(), rs));
+                    } else {
+                        result.add((T) Mapper.read(cls.newInstance(), rs,
+                                                   projection));
+                    }
+                }
+                record(query, start, result.size(), params);
+
+                return result;
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
+            } catch (InstantiationException|IllegalAccessException e) {
+                log.error("Could not create object instance", e);
+                throw new IOException("Could not create object instance", e);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            } finally {
+                if (rs != null) {
+                    try {
+                        rs.close();
+                    } catch (SQLException e) {}
+                }
+                endStatement(conn);
+                recycleConnection(conn);
+            }
+        }
+
+        /**
+         * Creates a select which fetches only the named fields of the
+         * objects. The other fields keep their initial values.
+         *
+         * @param fields the names of the selected fields.
+         * @return the select.
+         * @throws IOException if the class has no such fields.
+         */
+        public ProjectionSelect project(String... fields)
+            throws IOException {
+            try {
+                return new ProjectionSelect(Mapper.getProjection(cls,
+                                                                 fields));
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
+        }
+
+        /** Select of a column projection. */
+        public class ProjectionSelect {
+            private Mapper.Projection projection;
+            private String constraints;
+            private Object[] params;
+            private int timeout = -1;
+
+            private ProjectionSelect(Mapper.Projection projection) {
+                this.projection = projection;
+            }
+
+            /**
+             * Sets the constraints of the select.
+             *
+             * @param constraints the SQL where clause without the
+             * <tt>WHERE</tt> keyword.
+             * @param params the constraint parameters.
+             * @return this select.
+             */
+            public ProjectionSelect where(String constraints,
+                                          Object... params) {
+                this.constraints = constraints;
+                this.params = params;
+                return this;
+            }
+
+            /**
+             * Sets the query timeout of the select.
+             *
+             * @param timeout the timeout in seconds or 0 for no timeout.
+             * @return this select.
+             */
+            public ProjectionSelect timeout(int timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            /**
+             * Runs the select.
+             *
+             * @return the selected objects.
+             * @throws IOException if the select fails.
+             */
+            public List<T> list() throws IOException {
+                return select(projection.toSelectSql(constraints), params,
+                              timeout < 0 ? getQueryTimeout() : timeout,
+                              projection);
+            }
+        }
+
+        /**
+         * Creates a paginator which selects all objects in their ID
+         * order one page at a time. Each page continues from the ID
+         * of the previous page's last object, so pages cost the same
+         * regardless of their position.
+         *
+         * @param pageSize the maximum number of objects in a page.
+         * @return the paginator.
+         * @throws IOException if the class can't be paginated.
+         */
+        public Paginator paginate(int pageSize) throws IOException {
+            try {
+                return new Paginator(pageSize);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
+        }
+
+        /** Keyset paginator over the objects of the executor class. */
+        public class Paginator {
+            private int pageSize;
+            private String firstQuery;
+            private String nextQuery;
+
+            /** The last object of the previous page. */
+            private T last;
+
+            private boolean done;
+
+            private Paginator(int pageSize) throws MapperException {
+                this.pageSize = pageSize;
+                firstQuery = Mapper.toSelectPageSql(cls, pageSize, true);
+                nextQuery = Mapper.toSelectPageSql(cls, pageSize, false);
+            }
+
+            /**
+             * Tests if there can be more pages.
+             *
+             * @return <tt>true</tt> if the paginator has not yet seen
+             * the last page.
+             */
+            public boolean hasNext() {
+                return !done;
+            }
+
+            /**
+             * Selects the next page.
+             *
+             * @return the objects of the next page. The list is empty
+             * when there are no more objects.
+             * @throws IOException if the select fails.
+             */
+            public List<T> next() throws IOException {
+                ArrayList<T> result = new ArrayList<>();
+                if (done) {
+                    return result;
+                }
+
+                CachedConnection conn = null;
+                ResultSet rs = null;
+                try {
+                    conn = getReadConnection();
+                    PreparedStatement stmt;
+                    if (last == null) {
+                        stmt = conn.prepareStatement(firstQuery);
+                    } else {
+                        stmt = conn.prepareStatement(nextQuery);
+                        Mapper.bindIdParam(stmt, 1, last);
+                    }
+                    beginStatement(stmt);
+
+                    if (debug) {
+                        log.debug("query={}",
+                                  last == null ? firstQuery : nextQuery);
+                    }
+
+                    long start = System.nanoTime();
+                    rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        result.add((T) Mapper.read(cls.newInstance(), rs));
+                    }
+                    record(last == null ? firstQuery : nextQuery, start,
+                           result.size(),
+                           last == null || statistics == null
+                           ? null : Mapper.toIdParams(last));
+                } catch (SQLException e) {
+                    log.error("SQL error", e);
+                    throw new IOException("SQL error", e);
+                } catch (InstantiationException|IllegalAccessException e) {
+                    log.error("Could not create object instance", e);
+                    throw new IOException("Could not create object instance",
+                                          e);
+                } catch (MapperException e) {
+                    log.error("Mapper error", e);
+                    throw new IOException("Mapper error", e);
+                } finally {
+                    if (rs != null) {
+                        try {
+                            rs.close();
+                        } catch (SQLException e) {}
+                    }
+                    endStatement(conn);
+                    recycleConnection(conn);
+                }
+
+                if (result.size() < pageSize) {
+                    done = true;
+                }
+                if (!result.isEmpty()) {
+                    last = result.get(result.size() - 1);
+                }
+
+                return result;
+            }
+        }
+
+        /**
+         * Exports all objects as CSV in their ID order. The objects are
+         * selected one page at a time and each page is formatted into
+         * its own chunk on the common fork-join pool. The chunks are
+         * appended to the builder in the page order.
+         *
+         * @param cb the CSV builder, typically a streaming one.
+         * @param pageSize the number of objects in a chunk.
+         * @param header if <tt>true</tt> the CSV header line is
+         * appended before the objects.
+         * @return the number of exported objects.
+         * @throws IOException if the select or the conversion fails.
+         */
+        public long exportCsv(CSVBuilder cb, int pageSize, boolean header)
+            throws IOException {
+            return exportCsv(cb, pageSize, header, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Exports all objects as CSV using the fork-join pool for
+         * formatting the chunks. At most twice the pool's parallelism
+         * chunks are pending at any time.
+         *
+         * @param cb the CSV builder.
+         * @param pageSize the number of objects in a chunk.
+         * @param header if <tt>true</tt> the CSV header line is
+         * appended before the objects.
+         * @param pool the fork-join pool for formatting.
+         * @return the number of exported objects.
+         * @throws IOException if the select or the conversion fails.
+         */
+        public long exportCsv(CSVBuilder cb, int pageSize, boolean header,
+                              ForkJoinPool pool)
+            throws IOException {
+            if (header) {
+                try {
+                    Mapper.toCsvHeader(cls, cb);
+                    cb.nl();
+                } catch (MapperException e) {
+                    log.error("Mapper error", e);
+                    throw new IOException("Mapper error", e);
+                }
+            }
+
+            int maxPending = Math.max(2, pool.getParallelism() * 2);
+            ArrayDeque<ForkJoinTask<CSVBuilder>> pending
+                = new ArrayDeque<>();
+            Paginator paginator = paginate(pageSize);
+            long count = 0;
+
+            try {
+                while (paginator.hasNext()) {
+                    List<T> page = paginator.next();
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    count += page.size();
+                    pending.add(pool.submit(() -> {
+                        CSVBuilder chunk = cb.fork();
+                        for (T obj : page) {
+                            Mapper.toCsv(obj, chunk);
+                            chunk.nl();
+                        }
+                        return chunk;
+                    }));
+                    while (pending.size() >= maxPending) {
+                        writeChunk(cb, pending.remove());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    writeChunk(cb, pending.remove());
+                }
+            } finally {
+                for (ForkJoinTask<CSVBuilder> task : pending) {
+                    task.cancel(false);
+                }
+            }
+
+            return count;
+        }
+
+        private void writeChunk(CSVBuilder cb, ForkJoinTask<CSVBuilder> task)
+            throws IOException {
+            try {
+                cb.appendLines(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("CSV export interrupted", e);
+            } catch (ExecutionException e) {
+                log.error("CSV export failed", e.getCause());
+                throw new IOException("CSV export failed", e.getCause());
+            }
+        }
+
+        /**
+         * Imports objects from CSV. The objects are inserted in
+         * batches of the executor's batch size.
+         *
+         * @param csv the CSV reader.
+         * @param header if <tt>true</tt> the first record is read as
+         * the header and the columns are mapped by their names.
+         * @return the number of imported objects.
+         * @throws IOException if reading the input or the insert
+         * fails.
+         */
+        public long importCsv(CSVReader csv, boolean header)
+            throws IOException {
+            if (header && csv.readHeader() == null) {
+                return 0;
+            }
+
+            ArrayList<T> batch = new ArrayList<>();
+            long count = 0;
+
+            try {
+                while (csv.next()) {
+                    batch.add((T) Mapper.read(cls.newInstance(), csv));
+                    if (batch.size() >= batchSize) {
+                        insert(batch);
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+            } catch (InstantiationException|IllegalAccessException e) {
+                log.error("Could not create object instance", e);
+                throw new IOException("Could not create object instance", e);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
+            if (!batch.isEmpty()) {
+                insert(batch);
+                count += batch.size();
+            }
+
+            return count;
+        }
+
+        /**
+         * Gets an object by its ID. The object is returned from the
+         * entity cache if it is set and it contains the object. Cache
+         * misses are loaded from the primary connection.
+         *
+         * @param id the object ID.
+         * @return the object or <tt>null</tt> if no object has the ID.
+         * @throws IOException if the select fails.
+         */
+        public T get(Object id) throws IOException {
+            T obj;
+            long epoch = 0;
+
+            // Transactions see uncommitted rows which must not be
+            // shared with other threads.
+            EntityCache<T> entityCache
+                = persistentConnection == null ? this.entityCache : null;
+
+            if (entityCache != null) {
+                obj = entityCache.get(id);
+                if (obj != null) {
+                    return obj;
+                }
+                epoch = entityCache.getEpoch();
+            }
+
+            List<T> result;
+            try {
+                if (entityCache != null) {
+                    // Cache misses are loaded from the primary so that a
+                    // lagging replica can't cache an old object right
+                    // after an invalidation.
+                    result = doSelect(Mapper.toSelectSql(cls),
+                                      new Object[] { id }, getQueryTimeout(),
+                                      null, true);
+                } else {
+                    result = select(Mapper.toSelectSql(cls),
+                                    new Object[] { id });
+                }
+                if (result.isEmpty()) {
+                    return null;
+                }
+                obj = result.get(0);
+
+                // Cache by the object's own ID which is also the
+                // invalidation key.
+                if (entityCache != null) {
+                    entityCache.put(Mapper.getId(obj), obj, epoch);
+                }
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
+
+            return obj;
+        }
+
+        public void insert(T obj) throws IOException {
+            CachedConnection conn = null;
+            ResultSet keys = null;
+            try {
+                conn = getConnection();
+                String query = Mapper.toInsertSql(cls);
+                PreparedStatement stmt
+                    = conn.prepareStatement(query,
+                                            Statement.RETURN_GENERATED_KEYS);
+                beginStatement(stmt);
+                Mapper.bindSqlParams(stmt, obj, false, null);
+
+                long start = System.nanoTime();
+                int count = stmt.executeUpdate();
+                record(query, start, count, obj, null, false, null);
+                if (count != 1) {
+                    throw new IOException("Failed to insert object");
+                }
+
+                keys = stmt.getGeneratedKeys();
+                if (keys.next()) {
+                    generatedKey = keys.getInt(1);
+                }
+
+                Mapper.snapshot(obj);
+                invalidate(obj);
+                invalidateQueries();
+
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            } finally {
+                if (keys != null) {
+                    try {
+                        keys.close();
+                    } catch (SQLException e) {}
+                }
+                endStatement(conn);
+                recycleConnection(conn);
+            }
+        }
+
+        public void insert(List<T> objects) throws IOException {
+            CachedConnection conn = null;
+
+            try {
+                conn = getConnection();
+                String query = Mapper.toInsertSql(cls);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
+
+                for (T obj : objects) {
+                    invalidate(obj);
+                    Mapper.bindSqlParams(stmt, obj, false, null);
+                    stmt.addBatch();
+                }
+
+                long start = System.nanoTime();
+                stmt.executeBatch();
+                record(query, start, objects.size(), null);
+                invalidateQueries();
+
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            } finally {
+                endStatement(conn);
+                recycleConnection(conn);
+            }
+        }
+
+        public void update(T obj) throws IOException {
+            update(obj, null, null);
+        }
+
+        public void update(T obj, String where, Object[] params)
             throws IOException {
 
             CachedConnection conn = null;
-            ResultSet rs = null;
+
             try {
+                BitSet changed = Mapper.getChangedFields(obj);
+                if (changed != null && changed.isEmpty()) {
+                    if (where == null || where.isEmpty()) {
+                        return;
+                    }
+                    /* Conditional updates, such as optimistic locks,
+                       must still check their constraints and the
+                       update count, so all columns are written. */
+                    changed = null;
+                }
+
                 conn = getConnection();
+                String query = Mapper.toUpdateSql(cls, where, changed);
                 PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
 
-                if (params != null) {
-                    for (int i = 0; i < params.length; i++) {
-                        stmt.setObject(i + 1, params[i]);
-                    }
-                }
+                Mapper.bindSqlParams(stmt, obj, changed, true, params);
 
                 if (debug) {
-                    log.debug("query={}, params={}", query, params);
+                    log.debug("query={}, params={}", query,
+                              Arrays.deepToString(params));
                 }
 
-                ArrayList<T> result = new ArrayList<>();
-                rs = stmt.executeQuery();
-                while (rs.next()) {
-                    result.add((T) Mapper.read(cls.newInstance(), rs));
+                long start = System.nanoTime();
+                int count = stmt.executeUpdate();
+                record(query, start, count, obj, changed, true, params);
+                invalidate(obj);
+                invalidateQueries();
+                if (count != 1) {
+                    throw new IOException("Unexpected update count: " + count);
                 }
 
-                return result;
+                Mapper.snapshot(obj);
             } catch (SQLException e) {
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
-            } catch (InstantiationException|IllegalAccessException e) {
-                log.error("Could not create object instance", e);
-                throw new IOException("Could not create object instance", e);
             } catch (MapperException e) {
                 log.error("Mapper error", e);
                 throw new IOException("Mapper error", e);
             } finally {
-                if (rs != null) {
-                    try {
-                        rs.close();
-                    } catch (SQLException e) {}
-                }
+                endStatement(conn);
                 recycleConnection(conn);
             }
         }
 
-        public void insert(T obj) throws IOException {
+        /**
+         * Updates all argument objects with JDBC batches of at most
+         * <tt>batchSize</tt> statements.
+         *
+         * @param objects the objects to update.
+         * @throws IOException if the update fails or any of the
+         * objects did not update exactly one row.
+         */
+        public void updateAll(List<T> objects) throws IOException {
+            if (objects.isEmpty()) {
+                return;
+            }
+
             CachedConnection conn = null;
-            ResultSet keys = null;
+            int failed = 0;
+
             try {
                 conn = getConnection();
-                PreparedStatement stmt
-                    = conn.prepareStatement(Mapper.toInsertSql(cls),
-                                            Statement.RETURN_GENERATED_KEYS);
-                Object[] params = Mapper.toSqlParams(obj);
+                String query = Mapper.toUpdateSql(cls);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
 
-                for (int i = 0; i < params.length; i++) {
-                    stmt.setObject(i + 1, params[i]);
+                if (debug) {
+                    log.debug("query={}, count={}", query, objects.size());
                 }
 
-                if (stmt.executeUpdate() != 1) {
-                    throw new IOException("Failed to insert object");
-                }
+                long start = System.nanoTime();
+                int pending = 0;
+                for (T obj : objects) {
+                    invalidate(obj);
+                    Mapper.bindSqlParams(stmt, obj, true, null);
+                    stmt.addBatch();
 
-                keys = stmt.getGeneratedKeys();
-                if (keys.next()) {
-                    generatedKey = keys.getInt(1);
+                    if (++pending >= batchSize) {
+                        failed += countFailed(stmt.executeBatch());
+                        pending = 0;
+                    }
                 }
-
+                if (pending > 0) {
+                    failed += countFailed(stmt.executeBatch());
+                }
+                record(query, start, objects.size() - failed, null);
+                invalidateQueries();
             } catch (SQLException e) {
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
@@ -164,36 +1344,85 @@ public abstract class AbstractDAO {
                 log.error("Mapper error", e);
                 throw new IOException("Mapper error", e);
             } finally {
-                if (keys != null) {
-                    try {
-                        keys.close();
-                    } catch (SQLException e) {}
-                }
+                endStatement(conn);
                 recycleConnection(conn);
             }
+
+            if (failed > 0) {
+                throw new IOException("Unexpected update count for "
+                                      + failed + " of " + objects.size()
+                                      + " objects");
+            }
+
+            try {
+                for (T obj : objects) {
+                    Mapper.snapshot(obj);
+                }
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
+            }
         }
 
-        public void insert(List<T> objects) throws IOException {
+        /**
+         * Inserts the argument objects or updates the existing rows
+         * with the objects' IDs. The objects are written with JDBC
+         * batches of at most <tt>batchSize</tt> upsert statements.
+         *
+         * @param objects the objects to upsert.
+         * @throws IOException if the upsert fails or the database
+         * dialect is not supported.
+         */
+        public void upsert(List<T> objects) throws IOException {
+            if (objects.isEmpty()) {
+                return;
+            }
+
             CachedConnection conn = null;
 
             try {
                 conn = getConnection();
-                String sql = Mapper.toInsertSql(cls);
-                PreparedStatement stmt
-                    = conn.prepareStatement(Mapper.toInsertSql(cls));
+                Mapper.Dialect d = dialect;
+                if (d == null) {
+                    String product = conn.getMetaData()
+                        .getDatabaseProductName();
+                    d = Mapper.Dialect.forProductName(product);
+                    if (d == null) {
+                        throw new IOException("Upsert not supported for "
+                                              + product);
+                    }
+                    dialect = d;
+                }
 
-                for (T obj : objects) {
-                    Object[] params = Mapper.toSqlParams(obj);
+                String query = Mapper.toUpsertSql(cls, d);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
 
-                    for (int i = 0; i < params.length; i++) {
-                        stmt.setObject(i + 1, params[i]);
-                    }
+                if (debug) {
+                    log.debug("query={}, count={}", query, objects.size());
+                }
 
+                long start = System.nanoTime();
+                int pending = 0;
+                for (T obj : objects) {
+                    invalidate(obj);
+                    Mapper.bindUpsertParams(stmt, obj);
                     stmt.addBatch();
-                }
 
-                stmt.executeBatch();
+                    if (++pending >= batchSize) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
+                record(query, start, objects.size(), null);
+                invalidateQueries();
 
+                for (T obj : objects) {
+                    Mapper.snapshot(obj);
+                }
             } catch (SQLException e) {
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
@@ -201,114 +1430,542 @@ public abstract class AbstractDAO {
                 log.error("Mapper error", e);
                 throw new IOException("Mapper error", e);
             } finally {
+                endStatement(conn);
                 recycleConnection(conn);
             }
         }
 
-        public void update(T obj) throws IOException {
-            update(obj, null, null);
+        private int countFailed(int[] counts) {
+            int failed = 0;
+
+            for (int count : counts) {
+                if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                    failed++;
+                }
+            }
+
+            return failed;
         }
 
-        public void update(T obj, String where, Object[] params)
-            throws IOException {
+        /**
+         * Deletes all argument objects by their IDs with <tt>DELETE
+         * ... WHERE id IN (...)</tt> statements of at most
+         * <tt>batchSize</tt> IDs. The objects must have distinct IDs.
+         *
+         * @param objects the objects to delete.
+         * @throws IOException if the delete fails or the total delete
+         * count does not match the number of objects.
+         */
+        public void deleteAll(Collection<T> objects) throws IOException {
+            int total = objects.size();
+            if (total == 0) {
+                return;
+            }
+
+            CachedConnection conn = null;
+            int deleted = 0;
+
             try {
-                int count = executeUpdate(Mapper.toUpdateSql(cls, where),
-                                          Mapper.toSqlParams(obj, true,
-                                                             params));
-                if (count != 1) {
-                    throw new IOException("Unexpected update count: " + count);
+                conn = getConnection();
+
+                /* All chunks use the same statement; the last chunk
+                   is padded by repeating its last ID. */
+                int chunkSize = Math.min(total, batchSize);
+                String query = Mapper.toDeleteSql(cls, chunkSize);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
+
+                if (debug) {
+                    log.debug("query={}, count={}", query, total);
                 }
+
+                long start = System.nanoTime();
+                Iterator<T> iter = objects.iterator();
+                while (iter.hasNext()) {
+                    T obj = null;
+                    for (int i = 1; i <= chunkSize; i++) {
+                        if (iter.hasNext()) {
+                            obj = iter.next();
+                            invalidate(obj);
+                        }
+                        Mapper.bindIdParam(stmt, i, obj);
+                    }
+                    deleted += stmt.executeUpdate();
+                }
+                record(query, start, deleted, null);
+                invalidateQueries();
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
             } catch (MapperException e) {
                 log.error("Mapper error", e);
                 throw new IOException("Mapper error", e);
+            } finally {
+                endStatement(conn);
+                recycleConnection(conn);
+            }
+
+            if (deleted != total) {
+                throw new IOException("Unexpected delete count: " + deleted
+                                      + ", expected " + total);
             }
         }
 
         public void delete(T obj) throws IOException {
+            CachedConnection conn = null;
+
             try {
-                int count = executeUpdate(Mapper.toDeleteSql(cls),
-                                          Mapper.toIdParams(obj));
+                conn = getConnection();
+                String query = Mapper.toDeleteSql(cls);
+                PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt);
+
+                Mapper.bindIdParams(stmt, obj);
+
+                if (debug) {
+                    log.debug("query={}", query);
+                }
+
+                long start = System.nanoTime();
+                int count = stmt.executeUpdate();
+                // The parameters are only needed for the slow log.
+                record(query, start, count,
+                       statistics == null ? null : Mapper.toIdParams(obj));
+                invalidate(obj);
+                invalidateQueries();
                 if (count != 1) {
                     throw new IOException("Unexpected delete count: " + count);
                 }
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
             } catch (MapperException e) {
                 log.error("Mapper error", e);
                 throw new IOException("Mapper error", e);
+            } finally {
+                endStatement(conn);
+                recycleConnection(conn);
             }
         }
 
         public int executeUpdate(String query, Object[] params)
             throws IOException {
+            return executeUpdate(query, params, getQueryTimeout());
+        }
+
+        /**
+         * Executes the update statement with the query timeout. The
+         * statement may change any row so it clears the entity cache.
+         *
+         * @param query the SQL statement.
+         * @param params the statement parameters.
+         * @param timeout the query timeout in seconds or 0 for no
+         * timeout.
+         * @return the update count.
+         * @throws IOException if the update fails or times out.
+         */
+        public int executeUpdate(String query, Object[] params, int timeout)
+            throws IOException {
 
             CachedConnection conn = null;
 
             try {
                 conn = getConnection();
                 PreparedStatement stmt = conn.prepareStatement(query);
+                beginStatement(stmt, timeout);
 
                 for (int i = 0; i < params.length; i++) {
                     stmt.setObject(i + 1, params[i]);
                 }
 
                 if (debug) {
-                    log.debug("query={}, params={}", query, params);
+                    log.debug("query={}, params={}", query,
+                              Arrays.deepToString(params));
                 }
 
-                return stmt.executeUpdate();
+                long start = System.nanoTime();
+                int count = stmt.executeUpdate();
+                record(query, start, count, params);
+                invalidateAll();
+                invalidateQueries();
+
+                return count;
             } catch (SQLException e) {
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
+            } catch (MapperException e) {
+                log.error("Mapper error", e);
+                throw new IOException("Mapper error", e);
             } finally {
+                endStatement(conn);
                 recycleConnection(conn);
             }
         }
 
     }
 
-    protected class TransactionExecutor<T> extends Executor<T> {
+    /**
+     * Releases the connection of a transaction executor. This must
+     * not refer to the executor so that the executor can become
+     * unreachable and be cleaned.
+     */
+    private static class ConnectionReleaser implements Runnable {
+        private ConnectionManager connectionManager;
+        private CachedConnection conn;
+
+        /** Was the executor closed explicitly? */
+        volatile boolean closed;
+
+        /**
+         * Should the transaction be rolled back on an explicit close?
+         */
+        volatile boolean rollback;
+
+        ConnectionReleaser(ConnectionManager connectionManager,
+                           CachedConnection conn) {
+            this.connectionManager = connectionManager;
+            this.conn = conn;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!closed) {
+                    log.warn("TransactionExecutor was not closed, "
+                             + "rolling back its transaction");
+                    conn.rollback();
+                } else if (rollback) {
+                    conn.rollback();
+                }
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+            } finally {
+                connectionManager.recycle(conn);
+            }
+        }
+    }
+
+    /**
+     * Executor running its operations in a transaction on a dedicated
+     * connection. The executor must be closed to release the
+     * connection, preferably with a try-with-resources statement.
+     * Closing rolls back the changes which have not been committed.
+     * If an executor becomes unreachable without being closed, its
+     * transaction is rolled back and its connection released.
+     */
+    protected class TransactionExecutor<T> extends Executor<T>
+        implements AutoCloseable {
+
+        private ConnectionReleaser releaser;
+        private Cleaner.Cleanable cleanable;
 
         public TransactionExecutor(Class<?> cls) throws IOException {
             super(cls);
 
+            CachedConnection conn = null;
             try {
-                persistentConnection = connectionManager.getConnection();
-                persistentConnection.setAutoCommit(false);
+                conn = connectionManager.getConnection();
+                conn.setAutoCommit(false);
             } catch (SQLException e) {
+                if (conn != null) {
+                    connectionManager.recycle(conn);
+                }
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
             }
+
+            persistentConnection = conn;
+            releaser = new ConnectionReleaser(connectionManager, conn);
+            cleanable = cleaner.register(this, releaser);
         }
 
         public void commit() throws IOException {
             try {
                 persistentConnection.commit();
+                txPending = false;
             } catch (SQLException e) {
                 log.error("SQL error", e);
                 throw new IOException("SQL error", e);
+            } finally {
+                endTransaction();
             }
         }
 
-        public synchronized void close() {
-            if (persistentConnection == null) {
-                return;
-            }
+        public void rollback() throws IOException {
             try {
-                persistentConnection.setAutoCommit(true);
+                persistentConnection.rollback();
+                txPending = false;
             } catch (SQLException e) {
                 log.error("SQL error", e);
+                throw new IOException("SQL error", e);
             } finally {
-                connectionManager.recycle(persistentConnection);
-                persistentConnection = null;
+                endTransaction();
+            }
+        }
+
+        /**
+         * Sets a savepoint in the current transaction.
+         *
+         * @param name the savepoint name.
+         * @return the savepoint.
+         * @throws IOException if the savepoint can't be set.
+         */
+        public Savepoint setSavepoint(String name) throws IOException {
+            try {
+                return persistentConnection.setSavepoint(name);
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
+            }
+        }
+
+        /**
+         * Rolls back the changes made after the savepoint.
+         *
+         * @param savepoint the savepoint.
+         * @throws IOException if the rollback fails.
+         */
+        public void rollback(Savepoint savepoint) throws IOException {
+            try {
+                persistentConnection.rollback(savepoint);
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
+            }
+        }
+
+        public void releaseSavepoint(Savepoint savepoint) throws IOException {
+            try {
+                persistentConnection.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                log.error("SQL error", e);
+                throw new IOException("SQL error", e);
             }
         }
 
+        /**
+         * Closes the executor and releases its connection. Work done
+         * after the last commit is rolled back, so that an exception
+         * or an early return from the transaction never commits
+         * partial work.
+         */
         @Override
-        protected void finalize() throws Throwable {
+        public synchronized void close() {
+            if (persistentConnection == null) {
+                return;
+            }
+            releaser.rollback = txPending;
+            releaser.closed = true;
+            cleanable.clean();
+            persistentConnection = null;
+            if (txPending) {
+                txPending = false;
+                endTransaction();
+            }
+        }
+    }
+
+    /** A unit of work run in a transaction. */
+    protected interface TransactionCallback<T, R> {
+        R run(TransactionExecutor<T> tx) throws IOException;
+    }
+
+    /**
+     * Sets the retry policy of <tt>inTransaction</tt>. Retries are
+     * delayed with jittered exponential backoff.
+     *
+     * @param maxRetries the maximum number of retries.
+     * @param baseDelay the delay in milliseconds before the first
+     * retry.
+     * @param maxDelay the maximum delay in milliseconds between
+     * retries.
+     */
+    protected synchronized void setTransactionRetry(int maxRetries,
+                                                    long baseDelay,
+                                                    long maxDelay) {
+        if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        txMaxRetries = maxRetries;
+        txBaseDelay = baseDelay;
+        txMaxDelay = maxDelay;
+    }
+
+    /**
+     * Runs the unit of work in a transaction and commits it. If the
+     * work or commit fails, the transaction is rolled back. Failures
+     * caused by serialization failures or deadlocks (SQLState 40001
+     * or 40P01) are retried in a new transaction. The work must
+     * therefore be safe to run several times.
+     *
+     * @param cls the class of the transaction executor.
+     * @param work the unit of work.
+     * @return the result of the work.
+     * @throws IOException if the work fails with a non-retryable
+     * error or the retries are exhausted.
+     */
+    protected <T, R> R inTransaction(Class<?> cls,
+                                     TransactionCallback<T, R> work)
+        throws IOException {
+
+        int maxRetries;
+        long baseDelay;
+        long maxDelay;
+        synchronized (this) {
+            maxRetries = txMaxRetries;
+            baseDelay = txBaseDelay;
+            maxDelay = txMaxDelay;
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            try (TransactionExecutor<T> tx = new TransactionExecutor<>(cls)) {
+                try {
+                    R result = work.run(tx);
+                    tx.commit();
+                    return result;
+                } catch (IOException|RuntimeException e) {
+                    try {
+                        tx.rollback();
+                    } catch (IOException re) {
+                        e.addSuppressed(re);
+                    }
+                    if (attempt >= maxRetries || !isRetryable(e)) {
+                        throw e;
+                    }
+                    log.debug("Retrying transaction after attempt {}",
+                              attempt + 1, e);
+                }
+            }
+
+            /* Full jitter: sleep a random time up to the exponential
+               backoff limit. */
+            long limit = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+            long delay
+                = (long) (ThreadLocalRandom.current().nextDouble() * limit);
             try {
-                close();
-            } finally {
-                super.finalize();
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Tests if the exception was caused by a transaction
+     * serialization failure or a deadlock.
+     *
+     * @param e the exception.
+     * @return <tt>true</tt> if the transaction can be retried.
+     */
+    protected static boolean isRetryable(Throwable e) {
+        /* Only the SQLState is checked: other transaction rollback
+           states such as 40002 (integrity constraint) and 40003
+           (statement completion unknown) must not be replayed. */
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLException) {
+                String state = ((SQLException) e).getSQLState();
+                if ("40001".equals(state) || "40P01".equals(state)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asynchronous facade for an executor. The operations run on the
+     * DAO's executor service and their futures complete with the
+     * operation results. Failed operations complete the futures
+     * exceptionally with a <tt>CompletionException</tt> wrapping the
+     * operation's <tt>IOException</tt>.
+     *
+     * <p>The wrapped executor must not be a <tt>TransactionExecutor</tt>
+     * since its operations can run concurrently. For the same reason
+     * the executor's <tt>generatedKey</tt> is not reliable for
+     * asynchronous inserts.
+     */
+    protected class AsyncExecutor<T> {
+        private Executor<T> executor;
+
+        public AsyncExecutor(Class<?> cls) {
+            this(new Executor<T>(cls));
+        }
+
+        public AsyncExecutor(Executor<T> executor) {
+            if (executor instanceof TransactionExecutor) {
+                throw new IllegalArgumentException(
+                    "Transaction executors can't be run asynchronously");
             }
+            this.executor = executor;
+        }
+
+        public Executor<T> getExecutor() {
+            return executor;
+        }
+
+        public CompletableFuture<List<T>> select(final String query,
+                                                 final Object[] params) {
+            return runAsync(() -> executor.select(query, params));
+        }
+
+        public CompletableFuture<T> get(final Object id) {
+            return runAsync(() -> executor.get(id));
+        }
+
+        public CompletableFuture<Void> insert(final T obj) {
+            return runAsync(() -> {
+                    executor.insert(obj);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> insert(final List<T> objects) {
+            return runAsync(() -> {
+                    executor.insert(objects);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> update(final T obj) {
+            return runAsync(() -> {
+                    executor.update(obj);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> updateAll(final List<T> objects) {
+            return runAsync(() -> {
+                    executor.updateAll(objects);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> upsert(final List<T> objects) {
+            return runAsync(() -> {
+                    executor.upsert(objects);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> delete(final T obj) {
+            return runAsync(() -> {
+                    executor.delete(obj);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Void> deleteAll(final Collection<T> objects) {
+            return runAsync(() -> {
+                    executor.deleteAll(objects);
+                    return null;
+                });
+        }
+
+        public CompletableFuture<Integer> executeUpdate(final String query,
+                                                        final Object[] params) {
+            return runAsync(() -> executor.executeUpdate(query, params));
         }
     }
 }
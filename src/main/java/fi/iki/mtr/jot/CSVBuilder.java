@@ -34,14 +34,51 @@
 
 package fi.iki.mtr.jot;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.math.RoundingMode;
+import java.nio.channels.WritableByteChannel;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CSV document builder. By default the document is accumulated in
+ * memory and returned by <tt>toString</tt>. In the streaming mode
+ * the builder writes complete lines to its target whenever the
+ * buffered data exceeds the chunk size, so the memory usage stays
+ * constant regardless of the document size. Byte targets receive
+ * the document in UTF-8 encoding.
+ */
+public class CSVBuilder implements Closeable {
+    /** The default streaming chunk size in characters. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Number styles of locales. */
+    private static final ConcurrentHashMap<Locale, NumberStyle> styles
+        = new ConcurrentHashMap<>();
 
-public class CSVBuilder {
     private StringBuilder sb;
     private boolean bol;
+    private Locale locale;
+    private NumberStyle style;
     private NumberFormat df;
     private Format format;
+    private char[] digits;
+
+    private Writer writer;
+    private OutputStream out;
+    private WritableByteChannel channel;
+    private int chunkSize;
+    private char[] chars;
+    private byte[] bytes;
+    private ByteBuffer byteBuffer;
+    private IOException error;
 
     public enum Format {
         EXCEL,
@@ -51,10 +88,149 @@ public class CSVBuilder {
     public CSVBuilder(Locale locale, Format format) {
         sb = new StringBuilder();
         bol = true;
-        df = NumberFormat.getInstance(locale);
+        this.locale = locale;
+        style = styles.computeIfAbsent(locale, NumberStyle::new);
         this.format = format;
     }
 
+    /**
+     * The decimal number format of a locale. The fast formatter
+     * produces the same output as the locale's <tt>NumberFormat</tt>
+     * for values which can be rounded exactly with long arithmetic.
+     */
+    private static final class NumberStyle {
+        boolean fast;
+        String negativePrefix;
+        char groupingSeparator;
+        int groupingSize;
+        char decimalSeparator;
+        int minFraction;
+        int maxFraction;
+        long scale;
+
+        NumberStyle(Locale locale) {
+            NumberFormat nf = NumberFormat.getInstance(locale);
+            if (!(nf instanceof DecimalFormat)) {
+                return;
+            }
+            DecimalFormat df = (DecimalFormat) nf;
+            DecimalFormatSymbols symbols = df.getDecimalFormatSymbols();
+
+            negativePrefix = df.getNegativePrefix();
+            groupingSeparator = symbols.getGroupingSeparator();
+            groupingSize = df.isGroupingUsed() ? df.getGroupingSize() : 0;
+            decimalSeparator = symbols.getDecimalSeparator();
+            minFraction = df.getMinimumFractionDigits();
+            maxFraction = df.getMaximumFractionDigits();
+
+            fast = symbols.getZeroDigit() == '0'
+                && df.getPositivePrefix().isEmpty()
+                && df.getPositiveSuffix().isEmpty()
+                && df.getNegativeSuffix().isEmpty()
+                && df.getMinimumIntegerDigits() == 1
+                && df.getMultiplier() == 1
+                && df.getRoundingMode() == RoundingMode.HALF_EVEN
+                && !df.isDecimalSeparatorAlwaysShown()
+                && maxFraction <= 9;
+
+            scale = 1;
+            for (int i = 0; i < maxFraction; i++) {
+                scale *= 10;
+            }
+        }
+    }
+
+    private NumberFormat getNumberFormat() {
+        if (df == null) {
+            df = NumberFormat.getInstance(locale);
+        }
+        return df;
+    }
+
+    /**
+     * Creates a streaming builder writing to the writer.
+     *
+     * @param locale the locale for number formatting.
+     * @param format the CSV format.
+     * @param writer the output writer.
+     */
+    public CSVBuilder(Locale locale, Format format, Writer writer) {
+        this(locale, format, writer, DEFAULT_CHUNK_SIZE);
+    }
+
+    public CSVBuilder(Locale locale, Format format, Writer writer,
+                      int chunkSize) {
+        this(locale, format);
+        this.writer = writer;
+        setChunkSize(chunkSize);
+        chars = new char[this.chunkSize];
+    }
+
+    /**
+     * Creates a streaming builder writing UTF-8 encoded data to the
+     * output stream.
+     *
+     * @param locale the locale for number formatting.
+     * @param format the CSV format.
+     * @param out the output stream.
+     */
+    public CSVBuilder(Locale locale, Format format, OutputStream out) {
+        this(locale, format, out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public CSVBuilder(Locale locale, Format format, OutputStream out,
+                      int chunkSize) {
+        this(locale, format);
+        this.out = out;
+        setChunkSize(chunkSize);
+        bytes = new byte[this.chunkSize];
+    }
+
+    /**
+     * Creates a streaming builder writing UTF-8 encoded data to the
+     * channel.
+     *
+     * @param locale the locale for number formatting.
+     * @param format the CSV format.
+     * @param channel the output channel.
+     */
+    public CSVBuilder(Locale locale, Format format,
+                      WritableByteChannel channel) {
+        this(locale, format, channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public CSVBuilder(Locale locale, Format format,
+                      WritableByteChannel channel, int chunkSize) {
+        this(locale, format);
+        this.channel = channel;
+        setChunkSize(chunkSize);
+        bytes = new byte[this.chunkSize];
+        byteBuffer = ByteBuffer.wrap(bytes);
+    }
+
+    private void setChunkSize(int chunkSize) {
+        if (chunkSize < 16) {
+            throw new IllegalArgumentException("Invalid chunk size: "
+                                               + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        sb.ensureCapacity(chunkSize + chunkSize / 4);
+    }
+
+    /**
+     * Tests if the builder streams its output.
+     *
+     * @return <tt>true</tt> if the builder streams, <tt>false</tt>
+     * if the document is accumulated in memory.
+     */
+    public boolean isStreaming() {
+        return writer != null || out != null || channel != null;
+    }
+
+    /**
+     * Clears the buffered data. In the streaming mode this drops the
+     * data that has not been written yet.
+     */
     public void clear() {
         sb.setLength(0);
     }
@@ -107,24 +283,151 @@ public class CSVBuilder {
         return this;
     }
 
-    public CSVBuilder append(double val) {
-        String s = df.format(val);
+    public CSVBuilder append(int val) {
+        return append((long) val);
+    }
+
+    /**
+     * Appends an integer value. The digits are written directly
+     * without grouping separators.
+     *
+     * @param val the value.
+     * @return this builder.
+     */
+    public CSVBuilder append(long val) {
+        next();
+
+        if (format == Format.UNIX) {
+            sb.append('"');
+            sb.append(val);
+            sb.append('"');
+        } else {
+            sb.append(val);
+        }
+
+        return this;
+    }
 
-        switch (format) {
-        case UNIX:
-            append(s);
-            break;
+    /**
+     * Appends a decimal value in the locale's number format. The
+     * value is quoted in the UNIX format but, as numbers never need
+     * escaping, the formatted value is not scanned.
+     *
+     * @param val the value.
+     * @return this builder.
+     */
+    public CSVBuilder append(double val) {
+        next();
 
-        case EXCEL:
-            next();
-            sb.append(s);
+        if (format == Format.UNIX) {
+            sb.append('"');
+        }
+        if (!appendDecimal(val)) {
+            sb.append(getNumberFormat().format(val));
+        }
+        if (format == Format.UNIX) {
+            sb.append('"');
         }
 
         return this;
     }
 
+    /**
+     * Formats the decimal value with the locale's fast formatter.
+     *
+     * @param val the value.
+     * @return <tt>true</tt> if the value was appended, <tt>false</tt>
+     * if it must be formatted with the <tt>NumberFormat</tt>.
+     */
+    private boolean appendDecimal(double val) {
+        if (!style.fast || Double.isNaN(val) || Double.isInfinite(val)) {
+            return false;
+        }
+
+        // The scaled value must round to the same integer as the
+        // exact decimal value of the double, so values near a tie
+        // are left for the NumberFormat.
+        double scaled = Math.abs(val) * style.scale;
+        if (!(scaled < 0x1p50)) {
+            return false;
+        }
+        double rounded = Math.rint(scaled);
+        if (Math.abs(0.5 - Math.abs(scaled - rounded))
+            <= Math.ulp(scaled)) {
+            return false;
+        }
+
+        long m = (long) rounded;
+        boolean negative = val < 0 || (val == 0 && 1 / val < 0);
+        if (negative && m == 0) {
+            // NumberFormat writes negative zero with its sign.
+            return false;
+        }
+        if (negative) {
+            sb.append(style.negativePrefix);
+        }
+
+        appendGrouped(m / style.scale);
+
+        long fraction = m % style.scale;
+        int fractionDigits = style.maxFraction;
+        while (fractionDigits > style.minFraction && fraction % 10 == 0) {
+            fraction /= 10;
+            fractionDigits--;
+        }
+        if (fractionDigits > 0) {
+            sb.append(style.decimalSeparator);
+            appendDigits(fraction, fractionDigits);
+        }
+
+        return true;
+    }
+
+    private void appendGrouped(long val) {
+        int size = style.groupingSize;
+        if (size <= 0) {
+            sb.append(val);
+            return;
+        }
+        if (digits == null) {
+            digits = new char[32];
+        }
+
+        int pos = digits.length;
+        int count = 0;
+        do {
+            if (count > 0 && count % size == 0) {
+                digits[--pos] = style.groupingSeparator;
+            }
+            digits[--pos] = (char) ('0' + val % 10);
+            val /= 10;
+            count++;
+        } while (val > 0);
+
+        sb.append(digits, pos, digits.length - pos);
+    }
+
+    private void appendDigits(long val, int width) {
+        if (digits == null) {
+            digits = new char[32];
+        }
+
+        int pos = digits.length;
+        for (int i = 0; i < width; i++) {
+            digits[--pos] = (char) ('0' + val % 10);
+            val /= 10;
+        }
+
+        sb.append(digits, pos, width);
+    }
+
     public CSVBuilder append(boolean val) {
-        append(String.valueOf(val));
+        next();
+
+        sb.append('"');
+        sb.append(val);
+        sb.append('"');
+
         return this;
     }
 
@@ -137,9 +440,183 @@ public class CSVBuilder {
         sb.append("\n");
         bol = true;
 
+        if (sb.length() >= chunkSize && isStreaming()) {
+            drain();
+        }
+
         return this;
     }
 
+    /**
+     * Creates an in-memory builder with the same locale and format.
+     * The forked builders format rows concurrently with each other.
+     *
+     * @return the new builder.
+     */
+    CSVBuilder fork() {
+        return new CSVBuilder(locale, format);
+    }
+
+    /**
+     * Appends the complete lines of a forked builder.
+     *
+     * @param chunk the forked builder.
+     */
+    void appendLines(CSVBuilder chunk) {
+        sb.append(chunk.sb);
+        bol = true;
+
+        if (sb.length() >= chunkSize && isStreaming()) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes the buffered data to the target. The write errors are
+     * kept and reported from <tt>flush</tt> and <tt>close</tt> so
+     * that the <tt>append</tt> methods need not throw.
+     */
+    private void drain() {
+        drain(false);
+    }
+
+    /**
+     * Writes the buffered data to the target.
+     *
+     * @param last specifies if no more data follows. A trailing high
+     * surrogate is then written as <tt>'?'</tt> instead of being kept
+     * for its low surrogate.
+     */
+    private void drain(boolean last) {
+        if (error == null) {
+            try {
+                write(last);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            sb.setLength(0);
+        }
+    }
+
+    private void write(boolean last) throws IOException {
+        int len = sb.length();
+
+        if (writer != null) {
+            for (int i = 0; i < len; i += chars.length) {
+                int n = Math.min(chars.length, len - i);
+                sb.getChars(i, i + n, chars, 0);
+                writer.write(chars, 0, n);
+            }
+            sb.setLength(0);
+            return;
+        }
+
+        // Keep a trailing high surrogate for the next write.
+        if (!last && len > 0
+            && Character.isHighSurrogate(sb.charAt(len - 1))) {
+            len--;
+        }
+
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            if (pos > bytes.length - 4) {
+                writeBytes(pos);
+                pos = 0;
+            }
+            char ch = sb.charAt(i);
+            if (ch < 0x80) {
+                bytes[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (ch >> 6));
+                bytes[pos++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < len
+                       && Character.isLowSurrogate(sb.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, sb.charAt(++i));
+                bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                bytes[pos++] = (byte) '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (ch >> 12));
+                bytes[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+        writeBytes(pos);
+        sb.delete(0, len);
+    }
+
+    private void writeBytes(int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (out != null) {
+            out.write(bytes, 0, len);
+        } else {
+            byteBuffer.clear();
+            byteBuffer.limit(len);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered data to the streaming target and flushes
+     * it. This is a no-op for in-memory builders.
+     *
+     * @throws IOException if writing the data failed.
+     */
+    public void flush() throws IOException {
+        flush(false);
+    }
+
+    private void flush(boolean last) throws IOException {
+        if (!isStreaming()) {
+            return;
+        }
+        drain(last);
+        if (error != null) {
+            throw error;
+        }
+        if (writer != null) {
+            writer.flush();
+        } else if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes the buffered data and closes the streaming target.
+     *
+     * @throws IOException if writing the data failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isStreaming()) {
+            return;
+        }
+        try {
+            flush(true);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            } else if (out != null) {
+                out.close();
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the buffered document. In the streaming mode this
+     * contains only the data that has not been written yet.
+     */
     @Override
     public String toString() {
         return sb.toString();
@@ -0,0 +1,467 @@
+/*
+
+  CSVReader.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+package fi.iki.mtr.jot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * CSV reader for documents created with <tt>CSVBuilder</tt>. The
+ * reader understands the quoting of both CSV formats and the
+ * <tt>\n</tt> escapes of quoted values. The values of the current
+ * record are kept in a reusable buffer and numbers are parsed
+ * directly from it without creating strings.
+ */
+public class CSVReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+        1e21, 1e22,
+    };
+
+    private Reader in;
+    private char separator;
+    private char[] buf;
+    private int pos;
+    private int limit;
+
+    /** The unescaped values of the current record. */
+    private char[] data;
+    private int length;
+    private int[] starts;
+    private int[] ends;
+    private boolean[] quoted;
+    private int count;
+
+    private String[] header;
+
+    private char decimalSeparator;
+    private char groupingSeparator;
+    private char minusSign;
+    private String nan;
+    private String infinity;
+    private char[] number;
+
+    /** The column plan of <tt>Mapper</tt> and its class. */
+    Object plan;
+    Class<?> planClass;
+
+    public CSVReader(Reader in, Locale locale, CSVBuilder.Format format) {
+        this.in = in;
+        separator = format == CSVBuilder.Format.EXCEL ? '\t' : ',';
+        buf = new char[BUFFER_SIZE];
+
+        data = new char[256];
+        starts = new int[16];
+        ends = new int[16];
+        quoted = new boolean[16];
+
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        decimalSeparator = symbols.getDecimalSeparator();
+        groupingSeparator = symbols.getGroupingSeparator();
+        minusSign = symbols.getMinusSign();
+        nan = symbols.getNaN();
+        infinity = symbols.getInfinity();
+        number = new char[64];
+    }
+
+    /**
+     * Creates a reader for UTF-8 encoded CSV data.
+     *
+     * @param in the input stream.
+     * @param locale the locale of the numbers.
+     * @param format the CSV format.
+     */
+    public CSVReader(InputStream in, Locale locale,
+                     CSVBuilder.Format format) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8), locale,
+             format);
+    }
+
+    private int read() throws IOException {
+        if (pos >= limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos >= limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+
+        return true;
+    }
+
+    private void put(int ch) {
+        if (length >= data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[length++] = (char) ch;
+    }
+
+    private void addField(int start, boolean isQuoted) {
+        if (count >= starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            quoted = Arrays.copyOf(quoted, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = length;
+        quoted[count] = isQuoted;
+        count++;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return <tt>true</tt> if a record was read, <tt>false</tt> at
+     * the end of the input.
+     * @throws IOException if reading the input fails or the input
+     * is malformed.
+     */
+    public boolean next() throws IOException {
+        count = 0;
+        length = 0;
+
+        int ch = read();
+        if (ch < 0) {
+            return false;
+        }
+
+        while (true) {
+            int start = length;
+            boolean isQuoted = false;
+
+            if (ch == '"') {
+                isQuoted = true;
+                while (true) {
+                    ch = read();
+                    if (ch < 0) {
+                        throw new IOException("Unterminated quoted value");
+                    }
+                    if (ch == '"') {
+                        if (peek() != '"') {
+                            break;
+                        }
+                        pos++;
+                    } else if (ch == '\\' && peek() == 'n') {
+                        pos++;
+                        ch = '\n';
+                    }
+                    put(ch);
+                }
+                ch = read();
+            }
+            while (ch >= 0 && ch != separator && ch != '\n') {
+                if (ch == '\r' && peek() == '\n') {
+                    ch = read();
+                    break;
+                }
+                put(ch);
+                ch = read();
+            }
+            addField(start, isQuoted);
+
+            if (ch != separator) {
+                return true;
+            }
+            ch = read();
+        }
+    }
+
+    /**
+     * Reads the next record as the header.
+     *
+     * @return the column names or <tt>null</tt> if the input is
+     * empty.
+     * @throws IOException if reading the input fails.
+     */
+    public String[] readHeader() throws IOException {
+        if (!next()) {
+            return null;
+        }
+        header = new String[count];
+        for (int i = 0; i < count; i++) {
+            header[i] = getString(i);
+        }
+        plan = null;
+        planClass = null;
+
+        return header;
+    }
+
+    /**
+     * Gets the header of the input.
+     *
+     * @return the header or <tt>null</tt> if the header has not been
+     * read.
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Gets the number of values in the current record.
+     *
+     * @return the number of values.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Tests if the value is null i.e. an empty unquoted value.
+     *
+     * @param column the column index.
+     * @return <tt>true</tt> if the value is null.
+     */
+    public boolean isNull(int column) {
+        return !quoted[column] && starts[column] == ends[column];
+    }
+
+    public String getString(int column) {
+        return new String(data, starts[column],
+                          ends[column] - starts[column]);
+    }
+
+    public boolean getBoolean(int column) {
+        int start = starts[column];
+        if (ends[column] - start != 4) {
+            return false;
+        }
+        return Character.toLowerCase(data[start]) == 't'
+            && Character.toLowerCase(data[start + 1]) == 'r'
+            && Character.toLowerCase(data[start + 2]) == 'u'
+            && Character.toLowerCase(data[start + 3]) == 'e';
+    }
+
+    private boolean isGrouping(char ch) {
+        return ch == groupingSeparator || Character.isSpaceChar(ch);
+    }
+
+    private boolean isMinus(char ch) {
+        return ch == '-' || ch == minusSign;
+    }
+
+    /**
+     * Gets the value as an integer. The value can contain grouping
+     * separators.
+     *
+     * @param column the column index.
+     * @return the value.
+     * @throws NumberFormatException if the value is not an integer
+     * or it is out of range.
+     */
+    public int getInt(int column) {
+        long val = getLong(column);
+        if (val != (int) val) {
+            throw new NumberFormatException("Value out of range: "
+                                            + getString(column));
+        }
+        return (int) val;
+    }
+
+    /**
+     * Gets the value as a long integer. The value can contain
+     * grouping separators.
+     *
+     * @param column the column index.
+     * @return the value.
+     * @throws NumberFormatException if the value is not an integer
+     * or it is out of range.
+     */
+    public long getLong(int column) {
+        int i = starts[column];
+        int end = ends[column];
+        boolean negative = false;
+
+        if (i < end && (isMinus(data[i]) || data[i] == '+')) {
+            negative = data[i] != '+';
+            i++;
+        }
+
+        // Accumulate negatively to cover Long.MIN_VALUE.
+        long val = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            char ch = data[i];
+            if (ch >= '0' && ch <= '9') {
+                int digit = ch - '0';
+                if (val < (Long.MIN_VALUE + digit) / 10) {
+                    throw new NumberFormatException("Value out of range: "
+                                                    + getString(column));
+                }
+                val = val * 10 - digit;
+                digits++;
+            } else if (!isGrouping(ch)) {
+                throw new NumberFormatException("Invalid integer: "
+                                                + getString(column));
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid integer: "
+                                            + getString(column));
+        }
+        if (negative) {
+            return val;
+        }
+        if (val == Long.MIN_VALUE) {
+            throw new NumberFormatException("Value out of range: "
+                                            + getString(column));
+        }
+        return -val;
+    }
+
+    private boolean regionEquals(int start, int end, String str) {
+        int len = end - start;
+
+        if (len != str.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[start + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the value as a double in the locale's number format. Values
+     * with at most 15 digits are converted without creating strings.
+     *
+     * @param column the column index.
+     * @return the value.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public double getDouble(int column) {
+        int i = starts[column];
+        int end = ends[column];
+        boolean negative = false;
+
+        if (i < end && (isMinus(data[i]) || data[i] == '+')) {
+            negative = data[i] != '+';
+            i++;
+        }
+        if (regionEquals(i, end, nan)) {
+            return Double.NaN;
+        }
+        if (regionEquals(i, end, infinity)) {
+            return negative ? Double.NEGATIVE_INFINITY
+                : Double.POSITIVE_INFINITY;
+        }
+
+        int n = 0;
+        if (end - i + 1 > number.length) {
+            number = new char[end - i + 1];
+        }
+        if (negative) {
+            number[n++] = '-';
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean exponent = false;
+
+        for (; i < end; i++) {
+            char ch = data[i];
+            if (ch >= '0' && ch <= '9') {
+                number[n++] = ch;
+                if (!exponent) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                    digits++;
+                    if (fraction) {
+                        scale++;
+                    }
+                }
+            } else if (ch == decimalSeparator && !fraction && !exponent) {
+                number[n++] = '.';
+                fraction = true;
+            } else if ((ch == 'E' || ch == 'e') && digits > 0 && !exponent) {
+                number[n++] = 'E';
+                exponent = true;
+                if (i + 1 < end
+                    && (isMinus(data[i + 1]) || data[i + 1] == '+')) {
+                    number[n++] = data[++i] == '+' ? '+' : '-';
+                }
+            } else if (!isGrouping(ch) || fraction || exponent) {
+                throw new NumberFormatException("Invalid number: "
+                                                + getString(column));
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid number: "
+                                            + getString(column));
+        }
+
+        if (!exponent && digits <= 15 && scale < POW10.length) {
+            // Both the mantissa and the power of ten are exact doubles
+            // so the division is correctly rounded.
+            double val = mantissa / POW10[scale];
+            return negative ? -val : val;
+        }
+        return Double.parseDouble(new String(number, 0, n));
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -35,10 +35,13 @@
 package fi.iki.mtr.jot;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CachedConnection {
     /** The wrapped connection. */
@@ -47,10 +50,57 @@ public class CachedConnection {
     /** Cached prepared statements. */
     private HashMap<String, PreparedStatement> stmts;
 
+    /** The connection manager which created the connection. */
+    ConnectionManager owner;
+
+    /** Is the connection idle and parked for a thread? */
+    private AtomicBoolean parked;
+
+    /** The checkout time in milliseconds or 0 if the connection is idle. */
+    volatile long checkoutTime;
+
+    /** An optional stack trace of the checkout. */
+    volatile Throwable checkoutTrace;
+
+    /** Has the connection been reported as leaked? */
+    volatile boolean leakReported;
+
+    /** Was the leaked connection removed from its pool? */
+    volatile boolean reclaimed;
+
     public CachedConnection(Connection conn) {
         this.conn = conn;
 
         stmts = new HashMap<>();
+        parked = new AtomicBoolean();
+    }
+
+    void park() {
+        parked.set(true);
+    }
+
+    /**
+     * Takes the connection if it is parked.
+     *
+     * @return <tt>true</tt> if the connection was parked and the
+     * caller now owns it.
+     */
+    boolean unpark() {
+        return parked.compareAndSet(true, false);
+    }
+
+    boolean isParked() {
+        return parked.get();
+    }
+
+    /**
+     * Gets the time the connection was checked out from its pool.
+     *
+     * @return the checkout time in milliseconds or 0 if the
+     * connection is idle.
+     */
+    public long getCheckoutTime() {
+        return checkoutTime;
     }
 
     public boolean isValid(int timeout) throws SQLException {
@@ -75,6 +125,24 @@ public class CachedConnection {
         return stmt;
     }
 
+    /**
+     * Removes the statement from the statement cache and closes it.
+     *
+     * @param stmt the statement to remove.
+     */
+    public void evictStatement(Statement stmt) {
+        if (stmt == null || !stmts.values().remove(stmt)) {
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException e) {}
+    }
+
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return conn.getMetaData();
+    }
+
     public void setAutoCommit(boolean autoCommit) throws SQLException {
         conn.setAutoCommit(autoCommit);
     }
@@ -83,6 +151,22 @@ public class CachedConnection {
         conn.commit();
     }
 
+    public void rollback() throws SQLException {
+        conn.rollback();
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException {
+        conn.rollback(savepoint);
+    }
+
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return conn.setSavepoint(name);
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        conn.releaseSavepoint(savepoint);
+    }
+
     public void close() throws SQLException {
         conn.close();
     }
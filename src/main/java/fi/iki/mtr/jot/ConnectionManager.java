@@ -34,12 +34,31 @@
 
 package fi.iki.mtr.jot;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ConnectionManager {
+    private static Logger log
+        = LoggerFactory.getLogger(ConnectionManager.class);
+
     /** The JDBC connection URL. */
     private String url;
 
@@ -58,8 +77,67 @@ public class ConnectionManager {
     /** Does the driver has <tt>isValid</tt> method? */
     private boolean hasIsValid;
 
+    /** The shared queue of idle connections. */
     private LinkedList<CachedConnection> connections;
 
+    /** All open connections. */
+    private CopyOnWriteArrayList<CachedConnection> allConnections;
+
+    /**
+     * Should released connections be parked for the releasing thread
+     * instead of returning them to the shared queue?
+     */
+    private volatile boolean threadAffinity;
+
+    /** The connection parked for each thread. */
+    private ThreadLocal<CachedConnection> parked;
+
+    /**
+     * The <tt>Thread.isVirtual</tt> method handle or <tt>null</tt> if
+     * the runtime has no virtual threads. The handle is looked up once
+     * and, being a static final, can be inlined by the JIT.
+     */
+    private static final MethodHandle isVirtual;
+
+    static {
+        MethodHandle m = null;
+        try {
+            m = MethodHandles.publicLookup().findVirtual(
+                Thread.class, "isVirtual",
+                MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            /* Virtual threads are not available. */
+        }
+        isVirtual = m;
+    }
+
+    /** The number of connections which have failed validation. */
+    private final AtomicLong validationFailures = new AtomicLong();
+
+    /** The number of threads waiting for a connection. */
+    private volatile int waiters;
+
+    /**
+     * The SQL statements prepared on warmup with their
+     * auto-generated keys flags.
+     */
+    private LinkedHashMap<String, Integer> warmupStatements;
+
+    /**
+     * The time in milliseconds after which a checked out connection
+     * is considered leaked, or 0 if leak detection is disabled.
+     */
+    private volatile long leakThreshold;
+
+    /** Should the checkout stack traces be recorded? */
+    private volatile boolean leakTrace;
+
+    /** Should leaked connections be closed and removed from the pool? */
+    private volatile boolean leakReclaim;
+
+    /** The leak detection reaper. */
+    private ScheduledExecutorService reaper;
+
     public ConnectionManager(String url) {
         this(url, null);
     }
@@ -80,16 +158,84 @@ public class ConnectionManager {
         hasIsValid = true;
 
         connections = new LinkedList<>();
+        allConnections = new CopyOnWriteArrayList<>();
+        threadAffinity = false;
+        parked = new ThreadLocal<>();
+        warmupStatements = new LinkedHashMap<>();
+    }
+
+    /**
+     * Sets the thread affinity of connections. With affinity, a
+     * thread releasing a connection keeps it parked and gets it back
+     * on its next <tt>getConnection</tt> without locking the shared
+     * queue, which keeps the connection's statement cache warm for
+     * the thread. Parked connections are handed over to other threads
+     * when they would otherwise wait for a connection. Connections
+     * released by virtual threads are never parked since virtual
+     * threads are not reused. Affinity is disabled by default.
+     *
+     * @param threadAffinity specifies if connections have thread
+     * affinity.
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Gets the maximum connection pool size.
+     *
+     * @return the maximum number of connections.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public CachedConnection getConnection() throws SQLException {
+        CachedConnection conn = borrow();
+
+        conn.checkoutTime = System.currentTimeMillis();
+        if (leakTrace) {
+            conn.checkoutTrace = new Exception("Connection checked out by "
+                                               + Thread.currentThread());
+        }
+
+        return conn;
+    }
+
+    /**
+     * Gets a connection for read-only queries. This returns a
+     * connection from the same pool as <tt>getConnection</tt>;
+     * subclasses can route reads to other pools.
+     *
+     * @return the connection.
+     * @throws SQLException if the connection can't be created.
+     */
+    public CachedConnection getReadConnection() throws SQLException {
+        return getConnection();
     }
 
-    public synchronized CachedConnection getConnection() throws SQLException {
+    private CachedConnection borrow() throws SQLException {
+        CachedConnection conn = parked.get();
+        if (conn != null) {
+            parked.remove();
+            if (conn.unpark()) {
+                if (isValid(conn)) {
+                    return conn;
+                }
+                discard(conn);
+            }
+        }
+
+        return getSharedConnection();
+    }
+
+    private synchronized CachedConnection getSharedConnection()
+        throws SQLException {
         while (true) {
             while (!connections.isEmpty()) {
                 CachedConnection conn = connections.removeFirst();
                 if (!isValid(conn)) {
-                    try {
-                        conn.close();
-                    } catch (SQLException e) {}
+                    discard(conn);
                     continue;
                 }
 
@@ -98,13 +244,34 @@ public class ConnectionManager {
             if (numConnections < poolSize) {
                 break;
             }
-            while (connections.isEmpty()) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {}
+
+            waiters++;
+            try {
+                CachedConnection conn = stealParked();
+                if (conn != null) {
+                    if (isValid(conn)) {
+                        return conn;
+                    }
+                    discard(conn);
+                    continue;
+                }
+                while (connections.isEmpty() && numConnections >= poolSize) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {}
+                }
+            } finally {
+                waiters--;
             }
         }
 
+        CachedConnection conn = openConnection();
+        numConnections++;
+
+        return conn;
+    }
+
+    private synchronized void init() throws SQLException {
         if (!initialized) {
             if (driver != null) {
                 try {
@@ -115,11 +282,176 @@ public class ConnectionManager {
             }
             initialized = true;
         }
+    }
 
-        Connection conn = DriverManager.getConnection(url);
-        numConnections++;
+    /**
+     * Opens a new connection. The caller must account the connection
+     * in <tt>numConnections</tt>.
+     */
+    private CachedConnection openConnection() throws SQLException {
+        init();
 
-        return new CachedConnection(conn);
+        CachedConnection conn
+            = new CachedConnection(DriverManager.getConnection(url));
+        conn.owner = this;
+        allConnections.add(conn);
+
+        return conn;
+    }
+
+    /**
+     * Adds an SQL statement to be prepared on all connections opened
+     * by <tt>warmup</tt>.
+     *
+     * @param sql the SQL statement.
+     * @param autoGeneratedKeys the auto-generated keys flag for
+     * preparing the statement.
+     */
+    public synchronized void addWarmupStatement(String sql,
+                                                int autoGeneratedKeys) {
+        warmupStatements.put(sql, autoGeneratedKeys);
+    }
+
+    /**
+     * Adds the insert, update, select, and delete statements of the
+     * record class to be prepared on warmup. The statements are
+     * prepared the same way as <tt>AbstractDAO.Executor</tt> prepares
+     * them.
+     *
+     * @param cls the record class.
+     * @throws MapperException if the class can't be mapped.
+     */
+    public void addWarmupRecord(Class<?> cls) throws MapperException {
+        addWarmupStatement(Mapper.toInsertSql(cls),
+                           Statement.RETURN_GENERATED_KEYS);
+        if (Mapper.hasIdField(cls)) {
+            addWarmupStatement(Mapper.toUpdateSql(cls),
+                               Statement.NO_GENERATED_KEYS);
+            addWarmupStatement(Mapper.toSelectSql(cls),
+                               Statement.NO_GENERATED_KEYS);
+            addWarmupStatement(Mapper.toDeleteSql(cls),
+                               Statement.NO_GENERATED_KEYS);
+        }
+    }
+
+    /**
+     * Opens connections in parallel until the pool has at least
+     * <tt>minIdle</tt> connections, and prepares the warmup
+     * statements on the new connections.
+     *
+     * @param minIdle the minimum number of connections to open. The
+     * value is limited to the pool size.
+     * @throws SQLException if opening a connection or preparing a
+     * statement fails.
+     */
+    public void warmup(int minIdle) throws SQLException {
+        final Map<String, Integer> stmts;
+        int count;
+
+        init();
+
+        synchronized (this) {
+            stmts = new LinkedHashMap<>(warmupStatements);
+            count = Math.min(minIdle, poolSize) - numConnections;
+            if (count <= 0) {
+                return;
+            }
+            /* Reserve the pool slots for the new connections. */
+            numConnections += count;
+        }
+
+        final SQLException[] errors = new SQLException[count];
+        ArrayList<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            final int idx = i;
+            Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            warmupConnection(stmts);
+                        } catch (SQLException e) {
+                            errors[idx] = e;
+                        }
+                    }
+                }, "jot-warmup-" + i);
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        for (SQLException e : errors) {
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
+    private void warmupConnection(Map<String, Integer> stmts)
+        throws SQLException {
+        CachedConnection conn;
+
+        try {
+            conn = openConnection();
+        } catch (SQLException e) {
+            synchronized (this) {
+                numConnections--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        try {
+            for (Map.Entry<String, Integer> e : stmts.entrySet()) {
+                conn.prepareStatement(e.getKey(), e.getValue());
+            }
+        } finally {
+            synchronized (this) {
+                connections.add(conn);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes a connection parked by some thread.
+     *
+     * @return the connection or <tt>null</tt> if no connections are
+     * parked.
+     */
+    private CachedConnection stealParked() {
+        for (CachedConnection conn : allConnections) {
+            if (conn.unpark()) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the invalid connection and releases its pool slot.
+     *
+     * @param conn the connection to discard.
+     */
+    private void discard(CachedConnection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {}
+
+        synchronized (this) {
+            if (allConnections.remove(conn)) {
+                numConnections--;
+                notifyAll();
+            }
+        }
     }
 
     /**
@@ -130,6 +462,14 @@ public class ConnectionManager {
      * <tt>false</tt> otherwise.
      */
     private boolean isValid(CachedConnection conn) {
+        if (testValid(conn)) {
+            return true;
+        }
+        validationFailures.incrementAndGet();
+        return false;
+    }
+
+    private boolean testValid(CachedConnection conn) {
         try {
             if (hasIsValid) {
                 try {
@@ -147,8 +487,139 @@ public class ConnectionManager {
         }
     }
 
-    public synchronized void recycle(CachedConnection conn) {
-        connections.add(conn);
-        notifyAll();
+    /**
+     * Gets the number of pooled connections which have failed
+     * validation and have been discarded.
+     *
+     * @return the number of failed validations.
+     */
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    /**
+     * Enables or disables connection leak detection. A background
+     * reaper checks the connections periodically and logs the ones
+     * that have been checked out longer than the threshold.
+     *
+     * @param threshold the time in milliseconds after which a checked
+     * out connection is reported as leaked or 0 to disable leak
+     * detection.
+     * @param trace specifies if the checkout stack traces are recorded
+     * and logged with the leak reports.
+     * @param reclaim specifies if leaked connections are closed and
+     * their pool slots freed. The connection's holder gets errors
+     * when it uses the connection afterwards.
+     */
+    public synchronized void setLeakDetection(long threshold, boolean trace,
+                                              boolean reclaim) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid leak threshold: "
+                                               + threshold);
+        }
+        leakThreshold = threshold;
+        leakTrace = trace;
+        leakReclaim = reclaim;
+
+        if (reaper != null) {
+            reaper.shutdown();
+            reaper = null;
+        }
+        if (threshold == 0) {
+            return;
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "jot-leak-reaper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        long period = Math.max(threshold / 2, 1000);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reapLeaks();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void reapLeaks() {
+        long threshold = leakThreshold;
+        if (threshold == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        for (CachedConnection conn : allConnections) {
+            long checkoutTime = conn.checkoutTime;
+            if (checkoutTime == 0 || now - checkoutTime < threshold) {
+                continue;
+            }
+            if (!conn.leakReported) {
+                conn.leakReported = true;
+                log.warn("Connection leak: connection checked out for "
+                         + (now - checkoutTime) + " ms",
+                         conn.checkoutTrace);
+            }
+            if (leakReclaim) {
+                log.warn("Reclaiming leaked connection");
+                conn.reclaimed = true;
+                conn.checkoutTime = 0;
+                discard(conn);
+            }
+        }
+    }
+
+    public void recycle(CachedConnection conn) {
+        if (conn.reclaimed) {
+            log.warn("Recycling a reclaimed connection");
+            return;
+        }
+        conn.checkoutTime = 0;
+        conn.checkoutTrace = null;
+        conn.leakReported = false;
+
+        if (threadAffinity && waiters == 0 && !isVirtualThread()) {
+            CachedConnection prev = parked.get();
+            if (prev == null || !prev.isParked()) {
+                conn.park();
+                parked.set(conn);
+
+                /* A thread may have started waiting after we checked
+                   the waiters. If it did not steal the connection,
+                   hand it over through the shared queue. */
+                if (waiters == 0 || !conn.unpark()) {
+                    return;
+                }
+                parked.remove();
+            }
+        }
+
+        synchronized (this) {
+            connections.add(conn);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tests if the current thread is a virtual thread.
+     *
+     * @return <tt>true</tt> if the current thread is virtual and
+     * <tt>false</tt> otherwise.
+     */
+    private static boolean isVirtualThread() {
+        if (isVirtual == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtual.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
     }
 }
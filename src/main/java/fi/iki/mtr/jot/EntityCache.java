@@ -0,0 +1,258 @@
+/*
+
+  EntityCache.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+package fi.iki.mtr.jot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Segmented LRU cache for objects keyed by their ID field
+ * values. New entries enter the probationary segment and are promoted
+ * to the protected segment when they are accessed again, so one-time
+ * lookups do not evict frequently used objects. Entries expire after
+ * their time-to-live.
+ *
+ * <p>The cached objects are shared between all callers and they must
+ * be treated as read-only.
+ */
+public class EntityCache<T> {
+    private static class Entry<T> {
+        T value;
+        long expires;
+
+        Entry(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /** The maximum number of cached entries. */
+    private int maxSize;
+
+    /** The maximum number of entries in the protected segment. */
+    private int maxProtected;
+
+    /** The entry time-to-live in milliseconds. */
+    private long ttl;
+
+    private LinkedHashMap<Object, Entry<T>> probation;
+    private LinkedHashMap<Object, Entry<T>> protect;
+
+    /** Invalidation counter which is incremented on invalidation. */
+    private long epoch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a new entity cache.
+     *
+     * @param maxSize the maximum number of cached objects.
+     * @param ttl the object time-to-live in milliseconds or 0 if the
+     * objects never expire.
+     */
+    public EntityCache(int maxSize, long ttl) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid cache size: "
+                                               + maxSize);
+        }
+        this.maxSize = maxSize;
+        maxProtected = Math.max(1, maxSize * 4 / 5);
+        this.ttl = ttl;
+
+        probation = new LinkedHashMap<>(16, 0.75f, true);
+        protect = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the object by its ID.
+     *
+     * @param id the object ID.
+     * @return the cached object or <tt>null</tt> if the object is not
+     * cached or it has expired.
+     */
+    public synchronized T get(Object id) {
+        Entry<T> entry = protect.get(id);
+        if (entry == null) {
+            entry = probation.remove(id);
+            if (entry != null && !isExpired(entry)) {
+                promote(id, entry);
+            }
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry)) {
+            protect.remove(id);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Adds the object to the cache.
+     *
+     * @param id the object ID.
+     * @param value the object.
+     */
+    public synchronized void put(Object id, T value) {
+        long expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+
+        Entry<T> entry = protect.get(id);
+        if (entry != null) {
+            entry.value = value;
+            entry.expires = expires;
+            return;
+        }
+        probation.put(id, new Entry<T>(value, expires));
+
+        while (probation.size() + protect.size() > maxSize) {
+            if (!evictEldest(probation)) {
+                evictEldest(protect);
+            }
+        }
+    }
+
+    /**
+     * Gets the current invalidation epoch. Loaders read the epoch
+     * before loading an object and add the object with
+     * <tt>put(Object, Object, long)</tt>.
+     *
+     * @return the epoch.
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Adds the loaded object to the cache unless the cache has been
+     * invalidated after the load started. This keeps a load which
+     * races with a concurrent write from caching the old object.
+     *
+     * @param id the object ID.
+     * @param value the object.
+     * @param epoch the epoch before the load started.
+     * @return <tt>true</tt> if the object was added.
+     */
+    public synchronized boolean put(Object id, T value, long epoch) {
+        if (this.epoch != epoch) {
+            return false;
+        }
+        put(id, value);
+        return true;
+    }
+
+    /**
+     * Removes the object from the cache.
+     *
+     * @param id the object ID.
+     */
+    public synchronized void invalidate(Object id) {
+        epoch++;
+        if (protect.remove(id) == null) {
+            probation.remove(id);
+        }
+    }
+
+    /** Removes all objects from the cache. */
+    public synchronized void clear() {
+        epoch++;
+        probation.clear();
+        protect.clear();
+    }
+
+    public synchronized int size() {
+        return probation.size() + protect.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+
+        return String.format("size=%d, hits=%d, misses=%d, hitRatio=%.2f, "
+                             + "evictions=%d",
+                             size(), hits, misses,
+                             total == 0 ? 0.0 : (double) hits / total,
+                             evictions);
+    }
+
+    private boolean isExpired(Entry<T> entry) {
+        return entry.expires != 0
+            && entry.expires <= System.currentTimeMillis();
+    }
+
+    private void promote(Object id, Entry<T> entry) {
+        protect.put(id, entry);
+
+        if (protect.size() > maxProtected) {
+            Iterator<Map.Entry<Object, Entry<T>>> iter
+                = protect.entrySet().iterator();
+            Map.Entry<Object, Entry<T>> eldest = iter.next();
+            iter.remove();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private boolean evictEldest(LinkedHashMap<Object, Entry<T>> segment) {
+        Iterator<Entry<T>> iter = segment.values().iterator();
+        if (!iter.hasNext()) {
+            return false;
+        }
+        iter.next();
+        iter.remove();
+        evictions++;
+
+        return true;
+    }
+}
@@ -35,18 +35,36 @@
 
 package fi.iki.mtr.jot;
 
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
-
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.codec.binary.Base64;
 import org.json.JSONObject;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -63,7 +81,52 @@ public class Mapper {
     private static Logger log = LoggerFactory.getLogger(Mapper.class);
 
     private enum Type {
-        INT, INTEGER, CHAR, CHARACTER, STRING, BOOLEAN, DATE;
+        INT, INTEGER, CHAR, CHARACTER, STRING, BOOLEAN, DATE,
+        LONG, LONG_OBJECT, SHORT, SHORT_OBJECT, BYTE, BYTE_OBJECT,
+        FLOAT, FLOAT_OBJECT, DOUBLE, DOUBLE_OBJECT, BIG_DECIMAL, BYTES,
+        UUID, ENUM;
+    }
+
+    /** SQL dialects of the generated upsert statements. */
+    public enum Dialect {
+        POSTGRESQL, MYSQL, SQLITE, H2;
+
+        /**
+         * Gets the dialect of the JDBC database product.
+         *
+         * @param name the database product name.
+         * @return the dialect or <tt>null</tt> if the database is not
+         * supported.
+         */
+        public static Dialect forProductName(String name) {
+            name = name.toLowerCase();
+            if (name.contains("postgres")) {
+                return POSTGRESQL;
+            } else if (name.contains("mysql") || name.contains("mariadb")) {
+                return MYSQL;
+            } else if (name.contains("sqlite")) {
+                return SQLITE;
+            } else if (name.equals("h2")) {
+                return H2;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The field values of an object as they were read from the
+     * database. A record class enables change tracking by declaring
+     * a public field of this type; <tt>Executor.update</tt> then
+     * writes only the columns whose values have changed since the
+     * object was read or written.
+     */
+    public static final class Snapshot {
+        /** The values of the class' write fields. */
+        Object[] values;
+
+        Snapshot(Object[] values) {
+            this.values = values;
+        }
     }
 
     /** Information about class fields. */
@@ -98,6 +161,12 @@ public class Mapper {
         /** An optional parser for dates. */
         SimpleDateFormat dateFormat;
 
+        /** The generated mapper of the field or <tt>null</tt>. */
+        RecordMapper<Object> mapper;
+
+        /** The field index in the generated mapper. */
+        int mapperIndex;
+
         FieldInfo(java.lang.reflect.Field field) throws MapperException {
             this.field = field;
 
@@ -142,235 +211,1573 @@ public class Mapper {
                 type = Type.BOOLEAN;
             } else if (cls == Date.class) {
                 type = Type.DATE;
+            } else if (cls == long.class) {
+                type = Type.LONG;
+            } else if (cls == Long.class) {
+                type = Type.LONG_OBJECT;
+            } else if (cls == short.class) {
+                type = Type.SHORT;
+            } else if (cls == Short.class) {
+                type = Type.SHORT_OBJECT;
+            } else if (cls == byte.class) {
+                type = Type.BYTE;
+            } else if (cls == Byte.class) {
+                type = Type.BYTE_OBJECT;
+            } else if (cls == float.class) {
+                type = Type.FLOAT;
+            } else if (cls == Float.class) {
+                type = Type.FLOAT_OBJECT;
+            } else if (cls == double.class) {
+                type = Type.DOUBLE;
+            } else if (cls == Double.class) {
+                type = Type.DOUBLE_OBJECT;
+            } else if (cls == BigDecimal.class) {
+                type = Type.BIG_DECIMAL;
+            } else if (cls == byte[].class) {
+                type = Type.BYTES;
+            } else if (cls == UUID.class) {
+                type = Type.UUID;
+            } else if (cls.isEnum()) {
+                type = Type.ENUM;
             } else {
                 throw new MapperException("Unsupport field type '"
                                           + cls.getName() + "'");
             }
         }
-    }
 
-    private static boolean isEmpty(String val) {
-        return val == null || val.length() == 0;
-    }
+        /**
+         * Binds the field value of the object to the prepared
+         * statement parameter.
+         *
+         * @param stmt the prepared statement.
+         * @param index the statement parameter index.
+         * @param object the object which field value is bound.
+         * @throws IllegalAccessException if the field can't be accessed.
+         * @throws SQLException if the parameter binding fails.
+         */
+        void bind(PreparedStatement stmt, int index, Object object)
+            throws IllegalAccessException, SQLException {
+            if (mapper != null
+                && mapper.bind(stmt, index, object, mapperIndex)) {
+                return;
+            }
 
-    /** Information about classes. */
-    private static class ClassInfo {
-        String dbTableName;
-        FieldInfo[] fields;
+            Object val;
 
-        HashMap<String, FieldInfo> fieldsByJsonName;
-        HashMap<String, FieldInfo> fieldsByDbName;
+            switch (type) {
+            case INT:
+                stmt.setInt(index, field.getInt(object));
+                break;
 
-        ClassInfo(Class<?> cls) throws MapperException {
-            Record ann = cls.getAnnotation(Record.class);
-            if (ann != null) {
-                dbTableName = ann.dbName();
-            }
-            if (isEmpty(dbTableName)) {
-                dbTableName = cls.getSimpleName().toLowerCase();
-                /* XXX make valid plural form.
-                   http://www.grammar.cl/Notes/Plural_Nouns.htm */
-                dbTableName += "s";
-            }
+            case INTEGER:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.INTEGER);
+                } else {
+                    stmt.setInt(index, ((Integer) val).intValue());
+                }
+                break;
 
-            try {
+            case CHAR:
+                stmt.setString(index, String.valueOf(field.getChar(object)));
+                break;
 
-                ArrayList<FieldInfo> arr = new ArrayList<>();
+            case CHARACTER:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.CHAR);
+                } else {
+                    stmt.setString(index, val.toString());
+                }
+                break;
 
-                for (java.lang.reflect.Field field : cls.getFields()) {
-                    int modifiers = field.getModifiers();
+            case STRING:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.VARCHAR);
+                } else {
+                    stmt.setString(index, (String) val);
+                }
+                break;
 
-                    if (!Modifier.isPublic(modifiers)) {
-                        continue;
-                    }
+            case BOOLEAN:
+                stmt.setBoolean(index, field.getBoolean(object));
+                break;
 
-                    arr.add(new FieldInfo(field));
+            case DATE:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.BIGINT);
+                } else {
+                    // Dates are stored as epoch milliseconds as in read().
+                    stmt.setLong(index, ((Date) val).getTime());
                 }
+                break;
 
-                fields = arr.toArray(new FieldInfo[arr.size()]);
-                fieldsByJsonName = new HashMap<>();
-                fieldsByDbName = new HashMap<>();
+            case LONG:
+                stmt.setLong(index, field.getLong(object));
+                break;
 
-                for (FieldInfo field : fields) {
-                    fieldsByJsonName.put(field.jsonName, field);
-                    fieldsByDbName.put(field.dbName, field);
+            case LONG_OBJECT:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.BIGINT);
+                } else {
+                    stmt.setLong(index, ((Long) val).longValue());
                 }
-            } catch (SecurityException e) {
-                throw new MapperException("Could not access class '"
-                                          + cls.getName() + "'", e);
-            }
-        }
-    }
+                break;
 
-    private static IdentityHashMap<Class<?>, ClassInfo> classInfo
-        = new IdentityHashMap<>();
+            case SHORT:
+                stmt.setShort(index, field.getShort(object));
+                break;
 
-    private static ClassInfo makeClassInfo(Class<?> cls)
-        throws MapperException {
-        return new ClassInfo(cls);
-    }
+            case SHORT_OBJECT:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.SMALLINT);
+                } else {
+                    stmt.setShort(index, ((Short) val).shortValue());
+                }
+                break;
 
-    private static synchronized ClassInfo getClassInfo(Class<?> cls)
-        throws MapperException {
+            case BYTE:
+                stmt.setByte(index, field.getByte(object));
+                break;
 
-        ClassInfo info = classInfo.get(cls);
-        if (info == null) {
-            info = makeClassInfo(cls);
-            classInfo.put(cls, info);
-        }
+            case BYTE_OBJECT:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.TINYINT);
+                } else {
+                    stmt.setByte(index, ((Byte) val).byteValue());
+                }
+                break;
 
-        return info;
-    }
+            case FLOAT:
+                stmt.setFloat(index, field.getFloat(object));
+                break;
 
-    private static HashMap<String, SimpleDateFormat> dateFormats
-        = new HashMap<>();
+            case FLOAT_OBJECT:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.REAL);
+                } else {
+                    stmt.setFloat(index, ((Float) val).floatValue());
+                }
+                break;
 
-    private static synchronized SimpleDateFormat makeDateFormat(String format) {
-        SimpleDateFormat fmt;
+            case DOUBLE:
+                stmt.setDouble(index, field.getDouble(object));
+                break;
 
-        fmt = dateFormats.get(format);
-        if (fmt == null) {
-            fmt = new SimpleDateFormat(format);
-            dateFormats.put(format, fmt);
-        }
+            case DOUBLE_OBJECT:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.DOUBLE);
+                } else {
+                    stmt.setDouble(index, ((Double) val).doubleValue());
+                }
+                break;
 
-        return fmt;
-    }
+            case BIG_DECIMAL:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.DECIMAL);
+                } else {
+                    stmt.setBigDecimal(index, (BigDecimal) val);
+                }
+                break;
 
-    /**
-     * Reads the object from the JSON representation.
-     *
-     * @param object the object to read.
-     * @param json the JSON representation of the object.
-     * @return the argument object.
-     * @throws MapperException if the read operation fails.
-     */
-    public static Object read(Object object, JSONObject json)
-        throws MapperException {
+            case BYTES:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.VARBINARY);
+                } else {
+                    stmt.setBytes(index, (byte[]) val);
+                }
+                break;
 
-        ClassInfo info = getClassInfo(object.getClass());
-        for (String name : JSONObject.getNames(json)) {
-            FieldInfo fi = info.fieldsByJsonName.get(name);
-            if (fi == null) {
-                continue;
+            case UUID:
+                val = field.get(object);
+                if (val == null) {
+                    setNullUuid(stmt, index);
+                } else {
+                    // Native uuid columns need the UUID object.
+                    stmt.setObject(index, val);
+                }
+                break;
+
+            case ENUM:
+                val = field.get(object);
+                if (val == null) {
+                    stmt.setNull(index, Types.VARCHAR);
+                } else {
+                    stmt.setString(index, ((Enum<?>) val).name());
+                }
+                break;
             }
+        }
 
-            try {
-                switch (fi.type) {
-                case INT:
-                    fi.field.setInt(object, json.getInt(name));
-                    break;
+        /**
+         * Reads the field value of the object from the current row of
+         * the SQL result set.
+         *
+         * @param object the object which field is set.
+         * @param rs the SQL result set to read from.
+         * @param column the result set column index.
+         * @throws IllegalAccessException if the field can't be accessed.
+         * @throws SQLException if the column can't be read.
+         */
+        void read(Object object, ResultSet rs, int column)
+            throws IllegalAccessException, SQLException {
+            if (mapper != null
+                && mapper.read(object, rs, column, mapperIndex)) {
+                return;
+            }
 
-                case INTEGER:
-                    fi.field.set(object, Integer.valueOf(json.getInt(name)));
-                    break;
+            String str;
 
-                case CHAR:
-                    fi.field.setChar(object, (char) json.getInt(name));
-                    break;
+            switch (type) {
+            case INT:
+                field.setInt(object, rs.getInt(column));
+                break;
 
-                case CHARACTER:
-                    fi.field.set(object,
-                                 Character.valueOf((char) json.getInt(name)));
-                    break;
+            case INTEGER:
+                int i = rs.getInt(column);
+                field.set(object, rs.wasNull() ? null : Integer.valueOf(i));
+                break;
 
-                case STRING:
-                    fi.field.set(object, json.getString(name));
-                    break;
+            case CHAR:
+                field.setChar(object, rs.getString(column).charAt(0));
+                break;
 
-                case BOOLEAN:
-                    fi.field.set(object, json.getBoolean(name));
-                    break;
+            case CHARACTER:
+                str = rs.getString(column);
+                field.set(object, isEmpty(str)
+                          ? null : Character.valueOf(str.charAt(0)));
+                break;
 
-                case DATE:
-                    fi.field.set(object, new Date(json.getLong(name)));
-                    break;
-                }
-            } catch (IllegalAccessException e) {
-                throw new MapperException("Failed to set object field "
-                                          + fi.field.getName(), e);
-            }
-        }
+            case STRING:
+                field.set(object, rs.getString(column));
+                break;
 
-        return object;
-    }
+            case BOOLEAN:
+                field.setBoolean(object, rs.getBoolean(column));
+                break;
 
-    /**
-     * Reads the object from the current row of the SQL result set.
-     *
-     * @param object the object to read.
-     * @param rs the SQL result set to read from.
-     * @return the argument object.
-     * @throws MapperException if the read operation fails.
-     */
-    public static Object read(Object object, ResultSet rs)
-        throws MapperException {
+            case DATE:
+                long time = rs.getLong(column);
+                field.set(object, rs.wasNull() ? null : new Date(time));
+                break;
 
-        ClassInfo info = getClassInfo(object.getClass());
-        ResultSetMetaData meta;
-        int count;
+            case LONG:
+                field.setLong(object, rs.getLong(column));
+                break;
 
-        try {
-            meta = rs.getMetaData();
-            count = meta.getColumnCount();
-        } catch (SQLException e) {
-            throw new MapperException("SQL error", e);
-        }
+            case LONG_OBJECT:
+                long l = rs.getLong(column);
+                field.set(object, rs.wasNull() ? null : Long.valueOf(l));
+                break;
 
-        for (int i = 1; i <= count; i++) {
-            FieldInfo fi = null;
+            case SHORT:
+                field.setShort(object, rs.getShort(column));
+                break;
 
-            try {
-                fi = info.fieldsByDbName.get(meta.getColumnName(i));
-                if (fi == null) {
-                    continue;
-                }
+            case SHORT_OBJECT:
+                short sh = rs.getShort(column);
+                field.set(object, rs.wasNull() ? null : Short.valueOf(sh));
+                break;
 
-                switch (fi.type) {
-                case INT:
-                    fi.field.setInt(object, rs.getInt(i));
-                    break;
+            case BYTE:
+                field.setByte(object, rs.getByte(column));
+                break;
 
-                case INTEGER:
-                    fi.field.set(object, Integer.valueOf(rs.getInt(i)));
-                    break;
+            case BYTE_OBJECT:
+                byte b = rs.getByte(column);
+                field.set(object, rs.wasNull() ? null : Byte.valueOf(b));
+                break;
 
-                case CHAR:
-                    fi.field.setChar(object, rs.getString(i).charAt(0));
-                    break;
+            case FLOAT:
+                field.setFloat(object, rs.getFloat(column));
+                break;
 
-                case CHARACTER:
-                    fi.field.set(object,
-                                 Character.valueOf(rs.getString(i).charAt(0)));
-                    break;
+            case FLOAT_OBJECT:
+                float f = rs.getFloat(column);
+                field.set(object, rs.wasNull() ? null : Float.valueOf(f));
+                break;
 
-                case STRING:
-                    fi.field.set(object, rs.getString(i));
-                    break;
+            case DOUBLE:
+                field.setDouble(object, rs.getDouble(column));
+                break;
 
-                case BOOLEAN:
-                    fi.field.set(object, rs.getBoolean(i));
-                    break;
+            case DOUBLE_OBJECT:
+                double d = rs.getDouble(column);
+                field.set(object, rs.wasNull() ? null : Double.valueOf(d));
+                break;
 
-                case DATE:
-                    fi.field.set(object, new Date(rs.getLong(i)));
-                    break;
-                }
-            } catch (IllegalAccessException e) {
-                throw new MapperException("Failed to set object field "
-                                          + fi.field.getName(), e);
-            } catch (SQLException e) {
-                throw new MapperException("Failed to read object field "
-                                          + fi.field.getName()
-                                          + " from ResultSet",
-                                          e);
+            case BIG_DECIMAL:
+                field.set(object, rs.getBigDecimal(column));
+                break;
+
+            case BYTES:
+                field.set(object, rs.getBytes(column));
+                break;
+
+            case UUID:
+                field.set(object, getUuid(rs, column));
+                break;
+
+            case ENUM:
+                str = rs.getString(column);
+                field.set(object, str == null ? null : toEnum(str));
+                break;
             }
         }
 
-        return object;
-    }
+        /**
+         * Sets the field value of the object from its textual
+         * representation.
+         *
+         * @param object the object which field is set.
+         * @param val the textual value.
+         * @throws IllegalAccessException if the field can't be accessed.
+         * @throws IllegalArgumentException if the value is invalid.
+         * @throws ParseException if the date value is invalid.
+         */
+        void parse(Object object, String val)
+            throws IllegalAccessException, ParseException {
+
+            if (isEmpty(val) && !field.getType().isPrimitive()
+                && type != Type.STRING) {
+                if (type != Type.DATE || dateFormat != null) {
+                    field.set(object, null);
+                    return;
+                }
+            }
 
-    /**
+            switch (type) {
+            case INT:
+                field.setInt(object, Integer.parseInt(val));
+                break;
+
+            case INTEGER:
+                field.set(object, Integer.valueOf(val));
+                break;
+
+            case CHAR:
+                field.setChar(object, (char) Integer.parseInt(val));
+                break;
+
+            case CHARACTER:
+                field.set(object,
+                          Character.valueOf((char) Integer.parseInt(val)));
+                break;
+
+            case STRING:
+                field.set(object, val);
+                break;
+
+            case BOOLEAN:
+                field.setBoolean(object, Boolean.parseBoolean(val));
+                break;
+
+            case DATE:
+                if (dateFormat == null) {
+                    field.set(object, new Date(Long.parseLong(val)));
+                } else {
+                    synchronized (dateFormat) {
+                        field.set(object, dateFormat.parse(val));
+                    }
+                }
+                break;
+
+            case LONG:
+                field.setLong(object, Long.parseLong(val));
+                break;
+
+            case LONG_OBJECT:
+                field.set(object, Long.valueOf(val));
+                break;
+
+            case SHORT:
+                field.setShort(object, Short.parseShort(val));
+                break;
+
+            case SHORT_OBJECT:
+                field.set(object, Short.valueOf(val));
+                break;
+
+            case BYTE:
+                field.setByte(object, Byte.parseByte(val));
+                break;
+
+            case BYTE_OBJECT:
+                field.set(object, Byte.valueOf(val));
+                break;
+
+            case FLOAT:
+                field.setFloat(object, Float.parseFloat(val));
+                break;
+
+            case FLOAT_OBJECT:
+                field.set(object, Float.valueOf(val));
+                break;
+
+            case DOUBLE:
+                field.setDouble(object, Double.parseDouble(val));
+                break;
+
+            case DOUBLE_OBJECT:
+                field.set(object, Double.valueOf(val));
+                break;
+
+            case BIG_DECIMAL:
+                field.set(object, new BigDecimal(val));
+                break;
+
+            case BYTES:
+                field.set(object, Base64.decodeBase64(val));
+                break;
+
+            case UUID:
+                field.set(object, UUID.fromString(val));
+                break;
+
+            case ENUM:
+                field.set(object, toEnum(val));
+                break;
+            }
+        }
+
+        /**
+         * Sets the field value of the object from the CSV value. The
+         * values are expected in the format of <tt>Mapper.toCsv</tt>.
+         *
+         * @param object the object which field is set.
+         * @param csv the CSV reader.
+         * @param column the column index.
+         * @throws IllegalAccessException if the field can't be accessed.
+         * @throws IllegalArgumentException if the value is invalid.
+         * @throws ParseException if the date value is invalid.
+         */
+        void parse(Object object, CSVReader csv, int column)
+            throws IllegalAccessException, ParseException {
+
+            if (csv.isNull(column)) {
+                if (!field.getType().isPrimitive()) {
+                    field.set(object, null);
+                }
+                return;
+            }
+
+            int ival;
+            String str;
+
+            switch (type) {
+            case INT:
+                field.setInt(object, csv.getInt(column));
+                break;
+
+            case INTEGER:
+                field.set(object, Integer.valueOf(csv.getInt(column)));
+                break;
+
+            case CHAR:
+                ival = csv.getInt(column);
+                if (ival != (char) ival) {
+                    throw new NumberFormatException("Invalid char: " + ival);
+                }
+                field.setChar(object, (char) ival);
+                break;
+
+            case CHARACTER:
+                str = csv.getString(column);
+                if (str.length() != 1) {
+                    throw new IllegalArgumentException("Invalid character: "
+                                                       + str);
+                }
+                field.set(object, Character.valueOf(str.charAt(0)));
+                break;
+
+            case STRING:
+                field.set(object, csv.getString(column));
+                break;
+
+            case BOOLEAN:
+                field.setBoolean(object, csv.getBoolean(column));
+                break;
+
+            case DATE:
+                if (dateFormat == null) {
+                    field.set(object, new Date(csv.getLong(column)));
+                } else {
+                    str = csv.getString(column);
+                    synchronized (dateFormat) {
+                        field.set(object, dateFormat.parse(str));
+                    }
+                }
+                break;
+
+            case LONG:
+                field.setLong(object, csv.getLong(column));
+                break;
+
+            case LONG_OBJECT:
+                field.set(object, Long.valueOf(csv.getLong(column)));
+                break;
+
+            case SHORT:
+            case SHORT_OBJECT:
+                ival = csv.getInt(column);
+                if (ival != (short) ival) {
+                    throw new NumberFormatException("Invalid short: "
+                                                    + ival);
+                }
+                if (type == Type.SHORT) {
+                    field.setShort(object, (short) ival);
+                } else {
+                    field.set(object, Short.valueOf((short) ival));
+                }
+                break;
+
+            case BYTE:
+            case BYTE_OBJECT:
+                ival = csv.getInt(column);
+                if (ival != (byte) ival) {
+                    throw new NumberFormatException("Invalid byte: " + ival);
+                }
+                if (type == Type.BYTE) {
+                    field.setByte(object, (byte) ival);
+                } else {
+                    field.set(object, Byte.valueOf((byte) ival));
+                }
+                break;
+
+            case FLOAT:
+                field.setFloat(object, (float) csv.getDouble(column));
+                break;
+
+            case FLOAT_OBJECT:
+                field.set(object, Float.valueOf(csv.getString(column)));
+                break;
+
+            case DOUBLE:
+                field.setDouble(object, csv.getDouble(column));
+                break;
+
+            case DOUBLE_OBJECT:
+                field.set(object, Double.valueOf(csv.getString(column)));
+                break;
+
+            case BIG_DECIMAL:
+                field.set(object, new BigDecimal(csv.getString(column)));
+                break;
+
+            case BYTES:
+                field.set(object,
+                          Base64.decodeBase64(csv.getString(column)));
+                break;
+
+            case UUID:
+                field.set(object, UUID.fromString(csv.getString(column)));
+                break;
+
+            case ENUM:
+                field.set(object, toEnum(csv.getString(column)));
+                break;
+            }
+        }
+
+        /**
+         * Formats the field value of the object as text. This is the
+         * inverse of <tt>parse(Object, String)</tt>.
+         *
+         * @param object the object.
+         * @return the textual value or <tt>null</tt> if the field is
+         * null.
+         * @throws IllegalAccessException if the field can't be accessed.
+         */
+        String format(Object object) throws IllegalAccessException {
+            switch (type) {
+            case INT:
+                return Integer.toString(field.getInt(object));
+
+            case CHAR:
+                return Integer.toString(field.getChar(object));
+
+            case BOOLEAN:
+                return Boolean.toString(field.getBoolean(object));
+
+            case LONG:
+                return Long.toString(field.getLong(object));
+
+            case SHORT:
+                return Short.toString(field.getShort(object));
+
+            case BYTE:
+                return Byte.toString(field.getByte(object));
+
+            case FLOAT:
+                return Float.toString(field.getFloat(object));
+
+            case DOUBLE:
+                return Double.toString(field.getDouble(object));
+
+            default:
+                break;
+            }
+
+            Object val = field.get(object);
+            if (val == null) {
+                return null;
+            }
+
+            switch (type) {
+            case CHARACTER:
+                return Integer.toString((Character) val);
+
+            case DATE:
+                if (dateFormat == null) {
+                    return Long.toString(((Date) val).getTime());
+                }
+                synchronized (dateFormat) {
+                    return dateFormat.format((Date) val);
+                }
+
+            case BIG_DECIMAL:
+                return ((BigDecimal) val).toPlainString();
+
+            case BYTES:
+                return Base64.encodeBase64String((byte[]) val);
+
+            case ENUM:
+                return ((Enum<?>) val).name();
+
+            default:
+                return val.toString();
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object toEnum(String name) {
+            return Enum.valueOf((Class<? extends Enum>) field.getType(), name);
+        }
+
+        /**
+         * Gets a copy of the field value of the object for a snapshot.
+         *
+         * @param object the object.
+         * @return the field value.
+         * @throws IllegalAccessException if the field can't be accessed.
+         */
+        Object snapshot(Object object) throws IllegalAccessException {
+            Object val = field.get(object);
+            if (val == null) {
+                return null;
+            }
+
+            switch (type) {
+            case DATE:
+                return new Date(((Date) val).getTime());
+
+            case BYTES:
+                return ((byte[]) val).clone();
+
+            default:
+                return val;
+            }
+        }
+
+        /**
+         * Tests if the field value of the object is equal to the
+         * snapshot value.
+         *
+         * @param object the object.
+         * @param val the snapshot value.
+         * @return <tt>true</tt> if the values are equal.
+         * @throws IllegalAccessException if the field can't be accessed.
+         */
+        boolean equalsSnapshot(Object object, Object val)
+            throws IllegalAccessException {
+            if (type == Type.BYTES) {
+                return Arrays.equals((byte[]) field.get(object), (byte[]) val);
+            }
+            return Objects.equals(field.get(object), val);
+        }
+    }
+
+    private static boolean isEmpty(String val) {
+        return val == null || val.length() == 0;
+    }
+
+    /** Information about classes. */
+    private static class ClassInfo {
+        String dbTableName;
+        FieldInfo[] fields;
+
+        HashMap<String, FieldInfo> fieldsByJsonName;
+        HashMap<String, FieldInfo> fieldsByDbName;
+        HashMap<String, FieldInfo> fieldsByXmlAttribute;
+        HashMap<String, FieldInfo> fieldsByXmlElement;
+
+        /** The ID field or <tt>null</tt> if the class has no ID field. */
+        FieldInfo idField;
+
+        /**
+         * The fields of SQL insert and update statements in their
+         * parameter order.
+         */
+        FieldInfo[] writeFields;
+
+        /** The SQL insert statement. */
+        String insertSql;
+
+        /** The SQL select statement by ID. */
+        String selectSql;
+
+        /** The SQL delete statement. */
+        String deleteSql;
+
+        /** SQL delete statements for ID lists keyed by the list size. */
+        LruCache<Integer, String> deleteAllSql;
+
+        /**
+         * SQL update statements keyed by the updated write field
+         * indices, or <tt>null</tt> for all fields, and their
+         * additional constraints.
+         */
+        LruCache<List<Object>, String> updateSql;
+
+        /** The optional change tracking snapshot field. */
+        java.lang.reflect.Field snapshotField;
+
+        /** Column projections keyed by their field names. */
+        LruCache<List<String>, Projection> projections;
+
+        /**
+         * The fields of SQL upsert statements in their parameter
+         * order: the ID field followed by the other write fields.
+         */
+        FieldInfo[] upsertFields;
+
+        /** SQL upsert statements keyed by their dialects. */
+        EnumMap<Dialect, String> upsertSql;
+
+        ClassInfo(Class<?> cls) throws MapperException {
+            Record ann = cls.getAnnotation(Record.class);
+            if (ann != null) {
+                dbTableName = ann.dbName();
+            }
+            if (isEmpty(dbTableName)) {
+                dbTableName = cls.getSimpleName().toLowerCase();
+                /* XXX make valid plural form.
+                   http://www.grammar.cl/Notes/Plural_Nouns.htm */
+                dbTableName += "s";
+            }
+
+            try {
+
+                ArrayList<FieldInfo> arr = new ArrayList<>();
+
+                for (java.lang.reflect.Field field : cls.getFields()) {
+                    int modifiers = field.getModifiers();
+
+                    if (!Modifier.isPublic(modifiers)) {
+                        continue;
+                    }
+                    if (field.getType() == Snapshot.class) {
+                        snapshotField = field;
+                        continue;
+                    }
+
+                    arr.add(new FieldInfo(field));
+                }
+
+                fields = arr.toArray(new FieldInfo[arr.size()]);
+                fieldsByJsonName = new HashMap<>();
+                fieldsByDbName = new HashMap<>();
+                fieldsByXmlAttribute = new HashMap<>();
+                fieldsByXmlElement = new HashMap<>();
+
+                setMapper(cls);
+
+                for (FieldInfo field : fields) {
+                    fieldsByJsonName.put(field.jsonName, field);
+                    fieldsByDbName.put(field.dbName, field);
+                    if (field.xmlAttribute) {
+                        fieldsByXmlAttribute.put(field.xmlName, field);
+                    } else {
+                        fieldsByXmlElement.put(field.xmlName, field);
+                    }
+                }
+            } catch (SecurityException e) {
+                throw new MapperException("Could not access class '"
+                                          + cls.getName() + "'", e);
+            }
+
+            ArrayList<FieldInfo> arr = new ArrayList<>();
+            for (FieldInfo field : fields) {
+                if (field.isId) {
+                    if (idField == null) {
+                        idField = field;
+                    }
+                    if (field.idAutoAssign) {
+                        continue;
+                    }
+                }
+                if (field.readOnly) {
+                    continue;
+                }
+                arr.add(field);
+            }
+            writeFields = arr.toArray(new FieldInfo[arr.size()]);
+
+            insertSql = makeInsertSql();
+            if (idField != null) {
+                selectSql = "SELECT * FROM " + dbTableName + " WHERE "
+                    + idField.dbName + "=?";
+                deleteSql = "DELETE FROM " + dbTableName + " WHERE "
+                    + idField.dbName + "=?";
+            }
+            updateSql = new LruCache<>(SQL_CACHE_SIZE);
+            deleteAllSql = new LruCache<>(SQL_CACHE_SIZE);
+            projections = new LruCache<>(SQL_CACHE_SIZE);
+
+            if (idField != null) {
+                arr.clear();
+                arr.add(idField);
+                for (FieldInfo field : writeFields) {
+                    if (field != idField) {
+                        arr.add(field);
+                    }
+                }
+                upsertFields = arr.toArray(new FieldInfo[arr.size()]);
+                upsertSql = new EnumMap<>(Dialect.class);
+            }
+        }
+
+        synchronized String getUpsertSql(Dialect dialect) {
+            String sql = upsertSql.get(dialect);
+            if (sql != null) {
+                return sql;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            String id = idField.dbName;
+
+            sb.append(dialect == Dialect.H2 ? "MERGE INTO " : "INSERT INTO ");
+            sb.append(dbTableName);
+            sb.append(" (");
+            for (int i = 0; i < upsertFields.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(upsertFields[i].dbName);
+            }
+            sb.append(')');
+            if (dialect == Dialect.H2) {
+                sb.append(" KEY (");
+                sb.append(id);
+                sb.append(')');
+            }
+            sb.append(" VALUES (");
+            for (int i = 0; i < upsertFields.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('?');
+            }
+            sb.append(')');
+
+            switch (dialect) {
+            case POSTGRESQL:
+            case SQLITE:
+                sb.append(" ON CONFLICT (");
+                sb.append(id);
+                sb.append(')');
+                if (upsertFields.length == 1) {
+                    sb.append(" DO NOTHING");
+                    break;
+                }
+                sb.append(" DO UPDATE SET ");
+                for (int i = 1; i < upsertFields.length; i++) {
+                    if (i > 1) {
+                        sb.append(',');
+                    }
+                    sb.append(upsertFields[i].dbName);
+                    sb.append("=EXCLUDED.");
+                    sb.append(upsertFields[i].dbName);
+                }
+                break;
+
+            case MYSQL:
+                sb.append(" ON DUPLICATE KEY UPDATE ");
+                if (upsertFields.length == 1) {
+                    sb.append(id);
+                    sb.append('=');
+                    sb.append(id);
+                    break;
+                }
+                for (int i = 1; i < upsertFields.length; i++) {
+                    if (i > 1) {
+                        sb.append(',');
+                    }
+                    sb.append(upsertFields[i].dbName);
+                    sb.append("=VALUES(");
+                    sb.append(upsertFields[i].dbName);
+                    sb.append(')');
+                }
+                break;
+
+            case H2:
+                break;
+            }
+
+            sql = sb.toString();
+            upsertSql.put(dialect, sql);
+
+            return sql;
+        }
+
+        Projection getProjection(String[] names) throws MapperException {
+            List<String> key = Arrays.asList(names.clone());
+            Projection projection;
+            synchronized (projections) {
+                projection = projections.get(key);
+            }
+            if (projection != null) {
+                return projection;
+            }
+
+            FieldInfo[] columns = new FieldInfo[names.length];
+            for (int i = 0; i < names.length; i++) {
+                for (FieldInfo field : fields) {
+                    if (field.field.getName().equals(names[i])) {
+                        columns[i] = field;
+                        break;
+                    }
+                }
+                if (columns[i] == null) {
+                    throw new MapperException("Unknown field '" + names[i]
+                                              + "'");
+                }
+            }
+
+            projection = new Projection(this, columns);
+            synchronized (projections) {
+                projections.put(key, projection);
+            }
+
+            return projection;
+        }
+
+        private String makeInsertSql() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("INSERT INTO ");
+            sb.append(dbTableName);
+            sb.append(" (");
+
+            for (int i = 0; i < writeFields.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(writeFields[i].dbName);
+            }
+
+            sb.append(") VALUES (");
+            for (int i = 0; i < writeFields.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('?');
+            }
+            sb.append(")");
+
+            return sb.toString();
+        }
+
+        String getDeleteSql(int count) {
+            String sql;
+            synchronized (deleteAllSql) {
+                sql = deleteAllSql.get(count);
+            }
+            if (sql != null) {
+                return sql;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("DELETE FROM ");
+            sb.append(dbTableName);
+            sb.append(" WHERE ");
+            sb.append(idField.dbName);
+            sb.append(" IN (");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('?');
+            }
+            sb.append(')');
+
+            sql = sb.toString();
+            synchronized (deleteAllSql) {
+                deleteAllSql.put(count, sql);
+            }
+
+            return sql;
+        }
+
+        /**
+         * Sets the generated mapper of the class to the fields which
+         * it handles.
+         *
+         * @param cls the class.
+         */
+        @SuppressWarnings("unchecked")
+        private void setMapper(Class<?> cls) {
+            String name = cls.getName();
+            int idx = name.lastIndexOf('.');
+            name = name.substring(0, idx + 1)
+                + name.substring(idx + 1).replace('$', '_')
+                + RecordMapper.CLASS_SUFFIX;
+
+            RecordMapper<Object> mapper;
+            try {
+                Class<?> mapperClass = Class.forName(name, true,
+                                                     cls.getClassLoader());
+                mapper = (RecordMapper<Object>)
+                    mapperClass.getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                return;
+            } catch (ReflectiveOperationException|ClassCastException e) {
+                log.warn("Could not create record mapper " + name, e);
+                return;
+            }
+
+            /* A field hidden by a subclass field has the same name,
+               so the fields are matched by their declaring classes
+               too. */
+            String[] names = mapper.getFieldNames();
+            for (int i = 0; i < names.length; i++) {
+                Class<?> owner = getMappedClass(cls, names[i]);
+                for (FieldInfo field : fields) {
+                    if (field.field.getDeclaringClass() == owner
+                        && names[i].equals(field.field.getName())) {
+                        field.mapper = mapper;
+                        field.mapperIndex = i;
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the class declaring the named field the way
+         * <tt>RecordProcessor</tt> picks it: the nearest class with a
+         * public, non-static and non-final field of the name.
+         *
+         * @param cls the record class.
+         * @param name the field name.
+         * @return the declaring class or <tt>null</tt> if no such field
+         * exists.
+         */
+        private Class<?> getMappedClass(Class<?> cls, String name) {
+            for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+                try {
+                    int mods = c.getDeclaredField(name).getModifiers();
+                    if (Modifier.isPublic(mods) && !Modifier.isStatic(mods)
+                        && !Modifier.isFinal(mods)) {
+                        return c;
+                    }
+                } catch (NoSuchFieldException e) {
+                    /* Not declared in this class. */
+                }
+            }
+            return null;
+        }
+
+        String getUpdateSql(String constraints, BitSet columns) {
+            if (isEmpty(constraints)) {
+                constraints = "";
+            }
+
+            String sql;
+            synchronized (updateSql) {
+                sql = updateSql.get(Arrays.<Object>asList(columns,
+                                                          constraints));
+            }
+            if (sql != null) {
+                return sql;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("UPDATE ");
+            sb.append(dbTableName);
+            sb.append(" SET ");
+
+            int numColumns = 0;
+            for (int i = 0; i < writeFields.length; i++) {
+                if (columns != null && !columns.get(i)) {
+                    continue;
+                }
+                if (numColumns++ > 0) {
+                    sb.append(',');
+                }
+                sb.append(writeFields[i].dbName);
+                sb.append("=?");
+            }
+
+            sb.append(" WHERE ");
+            sb.append(idField.dbName);
+            sb.append("=?");
+
+            if (!isEmpty(constraints)) {
+                sb.append(" AND ");
+                sb.append(constraints);
+            }
+
+            sql = sb.toString();
+            synchronized (updateSql) {
+                updateSql.put(Arrays.<Object>asList(
+                                  columns == null ? null : columns.clone(),
+                                  constraints),
+                              sql);
+            }
+
+            return sql;
+        }
+    }
+
+    /**
+     * The maximum number of entries in the per-class caches of SQL
+     * statements and projections. The caches are keyed by values
+     * from the callers, such as constraints which may be built
+     * dynamically, so they must be bounded.
+     */
+    private static final int SQL_CACHE_SIZE = 256;
+
+    /**
+     * Access-ordered cache which evicts its least recently used
+     * entries over its maximum size. The cache is not synchronized.
+     */
+    private static class LruCache<K, V> extends LinkedHashMap<K, V> {
+        private int maxSize;
+
+        LruCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static IdentityHashMap<Class<?>, ClassInfo> classInfo
+        = new IdentityHashMap<>();
+
+    private static ClassInfo makeClassInfo(Class<?> cls)
+        throws MapperException {
+        return new ClassInfo(cls);
+    }
+
+    private static synchronized ClassInfo getClassInfo(Class<?> cls)
+        throws MapperException {
+
+        ClassInfo info = classInfo.get(cls);
+        if (info == null) {
+            info = makeClassInfo(cls);
+            classInfo.put(cls, info);
+        }
+
+        return info;
+    }
+
+    private static HashMap<String, SimpleDateFormat> dateFormats
+        = new HashMap<>();
+
+    private static synchronized SimpleDateFormat makeDateFormat(String format) {
+        SimpleDateFormat fmt;
+
+        fmt = dateFormats.get(format);
+        if (fmt == null) {
+            fmt = new SimpleDateFormat(format);
+            dateFormats.put(format, fmt);
+        }
+
+        return fmt;
+    }
+
+    /**
+     * Gets the database table name of the class.
+     *
+     * @param cls the class.
+     * @return the database table name.
+     * @throws MapperException if the class can't be mapped.
+     */
+    public static String getTableName(Class<?> cls) throws MapperException {
+        return getClassInfo(cls).dbTableName;
+    }
+
+    /**
+     * Reads the object from the JSON representation.
+     *
+     * @param object the object to read.
+     * @param json the JSON representation of the object.
+     * @return the argument object.
+     * @throws MapperException if the read operation fails.
+     */
+    public static Object read(Object object, JSONObject json)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        for (String name : JSONObject.getNames(json)) {
+            FieldInfo fi = info.fieldsByJsonName.get(name);
+            if (fi == null) {
+                continue;
+            }
+
+            try {
+                if (json.isNull(name) && !fi.field.getType().isPrimitive()) {
+                    fi.field.set(object, null);
+                    continue;
+                }
+
+                switch (fi.type) {
+                case INT:
+                    fi.field.setInt(object, json.getInt(name));
+                    break;
+
+                case INTEGER:
+                    fi.field.set(object, Integer.valueOf(json.getInt(name)));
+                    break;
+
+                case CHAR:
+                    fi.field.setChar(object, (char) json.getInt(name));
+                    break;
+
+                case CHARACTER:
+                    fi.field.set(object,
+                                 Character.valueOf((char) json.getInt(name)));
+                    break;
+
+                case STRING:
+                    fi.field.set(object, json.getString(name));
+                    break;
+
+                case BOOLEAN:
+                    fi.field.setBoolean(object, json.getBoolean(name));
+                    break;
+
+                case DATE:
+                    fi.field.set(object, new Date(json.getLong(name)));
+                    break;
+
+                case LONG:
+                    fi.field.setLong(object, json.getLong(name));
+                    break;
+
+                case LONG_OBJECT:
+                    fi.field.set(object, Long.valueOf(json.getLong(name)));
+                    break;
+
+                case SHORT:
+                    fi.field.setShort(object, (short) json.getInt(name));
+                    break;
+
+                case SHORT_OBJECT:
+                    fi.field.set(object,
+                                 Short.valueOf((short) json.getInt(name)));
+                    break;
+
+                case BYTE:
+                    fi.field.setByte(object, (byte) json.getInt(name));
+                    break;
+
+                case BYTE_OBJECT:
+                    fi.field.set(object,
+                                 Byte.valueOf((byte) json.getInt(name)));
+                    break;
+
+                case FLOAT:
+                    fi.field.setFloat(object, (float) json.getDouble(name));
+                    break;
+
+                case FLOAT_OBJECT:
+                    fi.field.set(object,
+                                 Float.valueOf((float) json.getDouble(name)));
+                    break;
+
+                case DOUBLE:
+                    fi.field.setDouble(object, json.getDouble(name));
+                    break;
+
+                case DOUBLE_OBJECT:
+                    fi.field.set(object, Double.valueOf(json.getDouble(name)));
+                    break;
+
+                case BIG_DECIMAL:
+                    fi.field.set(object, json.getBigDecimal(name));
+                    break;
+
+                case BYTES:
+                    fi.field.set(object,
+                                 Base64.decodeBase64(json.getString(name)));
+                    break;
+
+                case UUID:
+                    fi.field.set(object, UUID.fromString(json.getString(name)));
+                    break;
+
+                case ENUM:
+                    fi.field.set(object, fi.toEnum(json.getString(name)));
+                    break;
+                }
+            } catch (IllegalAccessException e) {
+                throw new MapperException("Failed to set object field "
+                                          + fi.field.getName(), e);
+            }
+        }
+
+        return object;
+    }
+
+    /**
+     * Reads the object from the current row of the SQL result set.
+     *
+     * @param object the object to read.
+     * @param rs the SQL result set to read from.
+     * @return the argument object.
+     * @throws MapperException if the read operation fails.
+     */
+    public static Object read(Object object, ResultSet rs)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        ResultSetMetaData meta;
+        int count;
+
+        try {
+            meta = rs.getMetaData();
+            count = meta.getColumnCount();
+        } catch (SQLException e) {
+            throw new MapperException("SQL error", e);
+        }
+
+        for (int i = 1; i <= count; i++) {
+            FieldInfo fi = null;
+
+            try {
+                fi = info.fieldsByDbName.get(meta.getColumnName(i));
+                if (fi == null) {
+                    continue;
+                }
+
+                fi.read(object, rs, i);
+            } catch (IllegalAccessException e) {
+                throw new MapperException("Failed to set object field "
+                                          + fi.field.getName(), e);
+            } catch (IllegalArgumentException e) {
+                throw new MapperException("Invalid value for field "
+                                          + fi.field.getName(), e);
+            } catch (SQLException e) {
+                throw new MapperException("Failed to read object field "
+                                          + fi.field.getName()
+                                          + " from ResultSet",
+                                          e);
+            }
+        }
+
+        snapshot(info, object);
+
+        return object;
+    }
+
+    /**
+     * Column projection of a record class. The projection selects
+     * only its fields' columns and reads them by their column
+     * positions. The projections and their SQL statements are cached
+     * so they can be fetched for every query.
+     */
+    public static final class Projection {
+        private ClassInfo info;
+        private FieldInfo[] columns;
+        private HashMap<String, String> selectSql;
+
+        private Projection(ClassInfo info, FieldInfo[] columns) {
+            this.info = info;
+            this.columns = columns;
+            selectSql = new HashMap<>();
+        }
+
+        /**
+         * Creates an SQL select statement for the projection's
+         * columns.
+         *
+         * @param constraints the optional SQL where clause without
+         * the <tt>WHERE</tt> keyword.
+         * @return the SQL select statement.
+         */
+        public synchronized String toSelectSql(String constraints) {
+            if (isEmpty(constraints)) {
+                constraints = "";
+            }
+            String sql = selectSql.get(constraints);
+            if (sql != null) {
+                return sql;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(columns[i].dbName);
+            }
+            sb.append(" FROM ");
+            sb.append(info.dbTableName);
+            if (!constraints.isEmpty()) {
+                sb.append(" WHERE ");
+                sb.append(constraints);
+            }
+
+            sql = sb.toString();
+            selectSql.put(constraints, sql);
+
+            return sql;
+        }
+    }
+
+    /**
+     * Gets the column projection of the class fields.
+     *
+     * @param cls the record class.
+     * @param fields the names of the projected fields.
+     * @return the projection.
+     * @throws MapperException if the class has no such fields.
+     */
+    public static Projection getProjection(Class<?> cls, String... fields)
+        throws MapperException {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("No projection fields");
+        }
+        return getClassInfo(cls).getProjection(fields);
+    }
+
+    /**
+     * Reads the projected fields of the object from the current row
+     * of the SQL result set. The result set columns must be in the
+     * projection's order.
+     *
+     * @param object the object to read.
+     * @param rs the SQL result set.
+     * @param projection the projection of the select.
+     * @return the argument object.
+     * @throws MapperException if the read operation fails.
+     */
+    public static Object read(Object object, ResultSet rs,
+                              Projection projection)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        if (info != projection.info) {
+            throw new MapperException("Projection of a different class");
+        }
+
+        for (int i = 0; i < projection.columns.length; i++) {
+            FieldInfo fi = projection.columns[i];
+            try {
+                fi.read(object, rs, i + 1);
+            } catch (IllegalAccessException e) {
+                throw new MapperException("Failed to set object field "
+                                          + fi.field.getName(), e);
+            } catch (IllegalArgumentException e) {
+                throw new MapperException("Invalid value for field "
+                                          + fi.field.getName(), e);
+            } catch (SQLException e) {
+                throw new MapperException("Failed to read object field "
+                                          + fi.field.getName()
+                                          + " from ResultSet",
+                                          e);
+            }
+        }
+
+        snapshot(info, object);
+
+        return object;
+    }
+
+    /**
+     * Reads the object from the current record of the CSV reader.
+     * The columns are mapped to fields by their XML names if the
+     * reader has read the header. Otherwise the columns are in the
+     * field order of <tt>toCsv</tt>. Unknown columns are ignored.
+     *
+     * @param object the object to read.
+     * @param csv the CSV reader.
+     * @return the argument object.
+     * @throws MapperException if the read operation fails.
+     */
+    public static Object read(Object object, CSVReader csv)
+        throws MapperException {
+
+        Class<?> cls = object.getClass();
+        FieldInfo[] columns;
+
+        if (csv.planClass == cls) {
+            columns = (FieldInfo[]) csv.plan;
+        } else {
+            ClassInfo info = getClassInfo(cls);
+            String[] header = csv.getHeader();
+
+            if (header == null) {
+                columns = info.fields;
+            } else {
+                columns = new FieldInfo[header.length];
+                for (int i = 0; i < header.length; i++) {
+                    columns[i] = info.fieldsByXmlElement.get(header[i]);
+                    if (columns[i] == null) {
+                        columns[i] = info.fieldsByXmlAttribute.get(header[i]);
+                    }
+                }
+            }
+            csv.plan = columns;
+            csv.planClass = cls;
+        }
+
+        int count = Math.min(columns.length, csv.size());
+        for (int i = 0; i < count; i++) {
+            FieldInfo fi = columns[i];
+            if (fi == null) {
+                continue;
+            }
+            try {
+                fi.parse(object, csv, i);
+            } catch (IllegalAccessException e) {
+                throw new MapperException("Failed to set object field "
+                                          + fi.field.getName(), e);
+            } catch (NumberFormatException e) {
+                throw new MapperException("Invalid number value for field "
+                                          + fi.field.getName(), e);
+            } catch (IllegalArgumentException e) {
+                throw new MapperException("Invalid value for field "
+                                          + fi.field.getName(), e);
+            } catch (ParseException e) {
+                throw new MapperException("Invalid date value for field "
+                                          + fi.field.getName(), e);
+            }
+        }
+
+        return object;
+    }
+
+    /**
      * Reads the object from the DOM element.
      *
      * @param object the object to read.
@@ -391,46 +1798,15 @@ public class Mapper {
                     val = getChildContent(element, fi.xmlName);
                 }
 
-                switch (fi.type) {
-                case INT:
-                    fi.field.setInt(object, Integer.parseInt(val));
-                    break;
-
-                case INTEGER:
-                    fi.field.setInt(object, Integer.valueOf(val));
-                    break;
-
-                case CHAR:
-                    fi.field.setChar(object, (char) Integer.parseInt(val));
-                    break;
-
-                case CHARACTER:
-                    fi.field.setChar(
-                    	object,
-                        Character.valueOf((char) Integer.parseInt(val)));
-                    break;
-
-                case STRING:
-                    fi.field.set(object, val);
-                    break;
-
-                case BOOLEAN:
-                    fi.field.set(object, Boolean.valueOf(val));
-                    break;
-
-                case DATE:
-                    if (fi.dateFormat == null) {
-                        fi.field.set(object, new Date(Long.parseLong(val)));
-                    } else if (!isEmpty(val)) {
-                        fi.field.set(object, fi.dateFormat.parse(val));
-                    }
-                    break;
-                }
+                fi.parse(object, val);
             } catch (IllegalAccessException e) {
                 throw new MapperException("Failed to set object field "
                                           + fi.field.getName(), e);
             } catch (NumberFormatException e) {
-                throw new MapperException("Invalid integer value for field "
+                throw new MapperException("Invalid number value for field "
+                                          + fi.field.getName(), e);
+            } catch (IllegalArgumentException e) {
+                throw new MapperException("Invalid value for field "
                                           + fi.field.getName(), e);
             } catch (ParseException e) {
                 throw new MapperException("Invalid date value for field "
@@ -442,6 +1818,112 @@ public class Mapper {
 
     }
 
+    /**
+     * Reads the object from the XML stream. The reader must be at the
+     * start element of the object. The attributes and child elements
+     * are bound to the fields by their XML names and the reader is
+     * left at the object's end element. Unlike the DOM binding, the
+     * fields without an attribute or child element keep their values.
+     *
+     * @param object the object to read.
+     * @param xml the XML stream reader.
+     * @return the argument object.
+     * @throws MapperException if the read operation fails.
+     */
+    public static Object read(Object object, XMLStreamReader xml)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        FieldInfo fi = null;
+
+        try {
+            if (!xml.isStartElement()) {
+                throw new MapperException("XML reader not at start element");
+            }
+
+            int count = xml.getAttributeCount();
+            for (int i = 0; i < count; i++) {
+                String name = xml.getAttributeLocalName(i);
+                fi = info.fieldsByXmlAttribute.get(name);
+                if (fi != null) {
+                    fi.parse(object, xml.getAttributeValue(i));
+                }
+            }
+            fi = null;
+
+            while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                fi = info.fieldsByXmlElement.get(xml.getLocalName());
+                if (fi == null) {
+                    getElementText(xml);
+                } else {
+                    fi.parse(object, getElementText(xml));
+                }
+                fi = null;
+            }
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to read XML", e);
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to set object field "
+                                      + fi.field.getName(), e);
+        } catch (NumberFormatException e) {
+            throw new MapperException("Invalid number value for field "
+                                      + fi.field.getName(), e);
+        } catch (IllegalArgumentException e) {
+            throw new MapperException("Invalid value for field "
+                                      + fi.field.getName(), e);
+        } catch (ParseException e) {
+            throw new MapperException("Invalid date value for field "
+                                      + fi.field.getName(), e);
+        }
+
+        return object;
+    }
+
+    /**
+     * Reads the text content of the current element and its
+     * descendants. The reader is left at the element's end element.
+     *
+     * @param xml the XML stream reader at a start element.
+     * @return the text content.
+     * @throws XMLStreamException if the XML is invalid.
+     */
+    private static String getElementText(XMLStreamReader xml)
+        throws XMLStreamException {
+        String text = null;
+        StringBuilder sb = null;
+        int depth = 1;
+
+        while (depth > 0) {
+            switch (xml.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (text == null) {
+                    text = xml.getText();
+                } else {
+                    if (sb == null) {
+                        sb = new StringBuilder(text);
+                    }
+                    sb.append(xml.getTextCharacters(), xml.getTextStart(),
+                              xml.getTextLength());
+                }
+                break;
+            }
+        }
+        if (sb != null) {
+            return sb.toString();
+        }
+        return text == null ? "" : text;
+    }
+
     /**
      * Gets the content of the name child element as string.
      *
@@ -461,6 +1943,136 @@ public class Mapper {
         return sb.toString();
     }
 
+    /**
+     * Writes the object as an XML element. The fields are written as
+     * attributes or child elements by their XML names and null fields
+     * are omitted.
+     *
+     * @param object the object to write.
+     * @param element the name of the object's element.
+     * @param xml the XML stream writer.
+     * @throws MapperException if the write operation fails.
+     */
+    public static void toXml(Object object, String element,
+                             XMLStreamWriter xml)
+        throws MapperException {
+        ClassInfo info = getClassInfo(object.getClass());
+
+        try {
+            xml.writeStartElement(element);
+
+            for (FieldInfo field : info.fields) {
+                if (field.xmlAttribute) {
+                    String val = field.format(object);
+                    if (val != null) {
+                        xml.writeAttribute(field.xmlName, val);
+                    }
+                }
+            }
+            for (FieldInfo field : info.fields) {
+                if (!field.xmlAttribute) {
+                    String val = field.format(object);
+                    if (val != null) {
+                        xml.writeStartElement(field.xmlName);
+                        xml.writeCharacters(val);
+                        xml.writeEndElement();
+                    }
+                }
+            }
+
+            xml.writeEndElement();
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to convert object to XML", e);
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to write XML", e);
+        }
+    }
+
+    /**
+     * Writes the objects as XML elements inside a root element. The
+     * objects are written as the iterable returns them, so they can
+     * be streamed from a larger source.
+     *
+     * @param objects the objects to write.
+     * @param root the name of the root element.
+     * @param element the name of the objects' elements.
+     * @param xml the XML stream writer.
+     * @throws MapperException if the write operation fails.
+     */
+    public static void toXml(Iterable<?> objects, String root,
+                             String element, XMLStreamWriter xml)
+        throws MapperException {
+        try {
+            xml.writeStartElement(root);
+            for (Object object : objects) {
+                toXml(object, element, xml);
+            }
+            xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to write XML", e);
+        }
+    }
+
+    /**
+     * Writes the object as an XML document to the writer. The writer
+     * is flushed but not closed.
+     *
+     * @param object the object to write.
+     * @param element the name of the document element.
+     * @param out the output writer.
+     * @throws MapperException if the write operation fails.
+     */
+    public static void toXml(Object object, String element, Writer out)
+        throws MapperException {
+        XMLStreamWriter xml = createXmlWriter(out);
+        try {
+            xml.writeStartDocument();
+            toXml(object, element, xml);
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to write XML", e);
+        }
+    }
+
+    /**
+     * Writes the objects as an XML document to the writer. The writer
+     * is flushed but not closed.
+     *
+     * @param objects the objects to write.
+     * @param root the name of the document element.
+     * @param element the name of the objects' elements.
+     * @param out the output writer.
+     * @throws MapperException if the write operation fails.
+     */
+    public static void toXml(Iterable<?> objects, String root,
+                             String element, Writer out)
+        throws MapperException {
+        XMLStreamWriter xml = createXmlWriter(out);
+        try {
+            xml.writeStartDocument();
+            toXml(objects, root, element, xml);
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to write XML", e);
+        }
+    }
+
+    private static XMLOutputFactory xmlOutputFactory;
+
+    private static synchronized XMLStreamWriter createXmlWriter(Writer out)
+        throws MapperException {
+        if (xmlOutputFactory == null) {
+            xmlOutputFactory = XMLOutputFactory.newInstance();
+        }
+        try {
+            return xmlOutputFactory.createXMLStreamWriter(out);
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to create XML writer", e);
+        }
+    }
+
     /**
      * Converts the object to JSON representation.
      *
@@ -476,6 +2088,11 @@ public class Mapper {
             Object val;
 
             for (FieldInfo field : info.fields) {
+                if (field.mapper != null
+                    && field.mapper.toJson(object, field.mapperIndex,
+                                           field.jsonName, json)) {
+                    continue;
+                }
                 switch (field.type) {
                 case INT:
                     json.put(field.jsonName, field.field.getInt(object));
@@ -488,6 +2105,12 @@ public class Mapper {
                 case INTEGER:
                 case CHARACTER:
                 case STRING:
+                case LONG_OBJECT:
+                case SHORT_OBJECT:
+                case BYTE_OBJECT:
+                case FLOAT_OBJECT:
+                case DOUBLE_OBJECT:
+                case BIG_DECIMAL:
                     val = field.field.get(object);
                     if (val == null) {
                         val = JSONObject.NULL;
@@ -505,6 +2128,51 @@ public class Mapper {
                         json.put(field.jsonName, date.getTime());
                     }
                     break;
+
+                case LONG:
+                    json.put(field.jsonName, field.field.getLong(object));
+                    break;
+
+                case SHORT:
+                    json.put(field.jsonName,
+                             (int) field.field.getShort(object));
+                    break;
+
+                case BYTE:
+                    json.put(field.jsonName, (int) field.field.getByte(object));
+                    break;
+
+                case FLOAT:
+                    json.put(field.jsonName,
+                             (double) field.field.getFloat(object));
+                    break;
+
+                case DOUBLE:
+                    json.put(field.jsonName, field.field.getDouble(object));
+                    break;
+
+                case BYTES:
+                    val = field.field.get(object);
+                    if (val == null) {
+                        val = JSONObject.NULL;
+                    } else {
+                        val = Base64.encodeBase64String((byte[]) val);
+                    }
+                    json.put(field.jsonName, val);
+                    break;
+
+                case UUID:
+                    val = field.field.get(object);
+                    json.put(field.jsonName,
+                             val == null ? JSONObject.NULL : val.toString());
+                    break;
+
+                case ENUM:
+                    val = field.field.get(object);
+                    json.put(field.jsonName,
+                             val == null
+                             ? JSONObject.NULL : ((Enum<?>) val).name());
+                    break;
                 }
             }
 
@@ -522,140 +2190,215 @@ public class Mapper {
      * @throws MapperException if the conversion fails.
      */
     public static String toInsertSql(Class<?> cls) throws MapperException {
+        return getClassInfo(cls).insertSql;
+    }
+
+    /**
+     * Converts the object to SQL update statement.
+     *
+     * @param cls the class of the object to convert
+     * @return the SQL update statement of the object.
+     * @throws MapperException if the conversion fails.
+     */
+    public static String toUpdateSql(Class<?> cls) throws MapperException {
+        return toUpdateSql(cls, null);
+    }
+
+    /**
+     * Converts the object to SQL update statement.
+     *
+     * @param cls the class of the object to convert
+     * @param constraints optional additional constraints for the
+     * objects to update.
+     * @return the SQL update statement of the object.
+     * @throws MapperException if the conversion fails.
+     */
+    public static String toUpdateSql(Class<?> cls, String constraints)
+        throws MapperException {
+        return toUpdateSql(cls, constraints, null);
+    }
+
+    /**
+     * Converts the object to SQL update statement which updates only
+     * the argument columns.
+     *
+     * @param cls the class of the object to convert
+     * @param constraints optional additional constraints for the
+     * objects to update.
+     * @param columns the columns to update as returned by
+     * <tt>getChangedFields</tt> or <tt>null</tt> to update all columns.
+     * @return the SQL update statement of the object.
+     * @throws MapperException if the conversion fails.
+     */
+    public static String toUpdateSql(Class<?> cls, String constraints,
+                                     BitSet columns)
+        throws MapperException {
+
         ClassInfo info = getClassInfo(cls);
-        StringBuilder sb = new StringBuilder();
+        if (info.idField == null) {
+            throw new MapperException("Can't update object " + cls
+                                      + " without an ID field");
+        }
 
-        sb.append("INSERT INTO ");
-        sb.append(info.dbTableName);
-        sb.append(" (");
+        return info.getUpdateSql(constraints, columns);
+    }
 
-        int numColumns = 0;
+    /**
+     * Creates an SQL select statement which selects an object by its
+     * ID.
+     *
+     * @param cls the class of the object to select.
+     * @return the SQL select statement.
+     * @throws MapperException if the conversion fails.
+     */
+    public static String toSelectSql(Class<?> cls) throws MapperException {
+        ClassInfo info = getClassInfo(cls);
+        if (info.selectSql == null) {
+            throw new MapperException("Can't select object " + cls
+                                      + " without an ID field");
+        }
 
-        for (FieldInfo field : info.fields) {
-            if (field.isId && field.idAutoAssign) {
-                continue;
-            }
-            if (field.readOnly) {
-                continue;
-            }
-            if (numColumns > 0) {
-                sb.append(',');
-            }
-            sb.append(field.dbName);
-            numColumns++;
+        return info.selectSql;
+    }
+
+    /**
+     * Creates an SQL upsert statement which inserts an object or
+     * updates the existing row with the object's ID. The statement
+     * parameters are bound with <tt>bindUpsertParams</tt>.
+     *
+     * @param cls the class of the object.
+     * @param dialect the SQL dialect of the statement.
+     * @return the SQL upsert statement.
+     * @throws MapperException if the class has no ID field.
+     */
+    public static String toUpsertSql(Class<?> cls, Dialect dialect)
+        throws MapperException {
+        ClassInfo info = getClassInfo(cls);
+        if (info.idField == null) {
+            throw new MapperException("Can't upsert object " + cls
+                                      + " without an ID field");
+        }
+
+        return info.getUpsertSql(dialect);
+    }
+
+    /**
+     * Binds the object's SQL upsert statement parameters to the
+     * prepared statement. The object ID is always bound, also for
+     * automatically assigned IDs.
+     *
+     * @param stmt the prepared statement.
+     * @param object the object to bind.
+     * @return the number of parameters bound.
+     * @throws MapperException if the binding fails.
+     */
+    public static int bindUpsertParams(PreparedStatement stmt, Object object)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        if (info.idField == null) {
+            throw new MapperException("No ID field found for object "
+                                      + object.getClass());
         }
 
-        sb.append(") VALUES (");
-        for (int i = 0; i < numColumns; i++) {
-            if (i > 0) {
-                sb.append(',');
+        FieldInfo fi = null;
+        try {
+            for (int i = 0; i < info.upsertFields.length; i++) {
+                fi = info.upsertFields[i];
+                fi.bind(stmt, i + 1, object);
             }
-            sb.append('?');
-        }
-        sb.append(")");
 
-        return sb.toString();
+            return info.upsertFields.length;
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to get object field "
+                                      + fi.field.getName(), e);
+        } catch (SQLException e) {
+            throw new MapperException("Failed to bind "
+                                      + fi.field.getName(), e);
+        }
     }
 
     /**
-     * Converts the object to SQL update statement.
+     * Converts the object to SQL delete statement.
      *
-     * @param cls the class of the object to convert
-     * @return the SQL update statement of the object.
+     * @param cls the class of the object to convert.
+     * @param the SQL update statement of the object.
      * @throws MapperException if the conversion fails.
      */
-    public static String toUpdateSql(Class<?> cls) throws MapperException {
-        return toUpdateSql(cls, null);
+    public static String toDeleteSql(Class<?> cls) throws MapperException {
+        ClassInfo info = getClassInfo(cls);
+        if (info.deleteSql == null) {
+            throw new MapperException("Can't delete object " + cls
+                                      + " without an ID field");
+        }
+
+        return info.deleteSql;
     }
 
     /**
-     * Converts the object to SQL update statement.
+     * Converts the object to SQL delete statement which deletes
+     * objects by a list of IDs.
      *
-     * @param cls the class of the object to convert
-     * @param constraints optional additional constraints for the
-     * objects to update.
-     * @return the SQL update statement of the object.
+     * @param cls the class of the object to convert.
+     * @param count the number of IDs in the statement.
+     * @return the SQL delete statement of the objects.
      * @throws MapperException if the conversion fails.
      */
-    public static String toUpdateSql(Class<?> cls, String constraints)
+    public static String toDeleteSql(Class<?> cls, int count)
         throws MapperException {
 
         ClassInfo info = getClassInfo(cls);
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("UPDATE ");
-        sb.append(info.dbTableName);
-        sb.append(" SET ");
-
-        int numColumns = 0;
-        FieldInfo idField = null;
-
-        for (FieldInfo field : info.fields) {
-            if (field.isId) {
-                idField = field;
-                if (field.idAutoAssign) {
-                    continue;
-                }
-            }
-            if (field.readOnly) {
-                continue;
-            }
-            if (numColumns > 0) {
-                sb.append(',');
-            }
-            sb.append(field.dbName);
-            sb.append("=?");
-            numColumns++;
-        }
-
-        if (idField == null) {
-            throw new MapperException("Can't update object " + cls
+        if (info.idField == null) {
+            throw new MapperException("Can't delete object " + cls
                                       + " without an ID field");
         }
-
-        sb.append(" WHERE ");
-        sb.append(idField.dbName);
-        sb.append("=?");
-
-        if (!isEmpty(constraints)) {
-            sb.append(" AND ");
-            sb.append(constraints);
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid ID count: " + count);
         }
 
-        return sb.toString();
+        return info.getDeleteSql(count);
     }
 
     /**
-     * Converts the object to SQL delete statement.
+     * Creates an SQL select statement which selects a page of objects
+     * ordered by their ID field. The statement of the first page
+     * takes no parameters. The statements of the following pages
+     * select objects with IDs greater than the statement's ID
+     * parameter.
      *
-     * @param cls the class of the object to convert.
-     * @param the SQL update statement of the object.
+     * @param cls the class of the objects to select.
+     * @param pageSize the maximum number of objects in a page.
+     * @param first specifies if the statement selects the first page.
+     * @return the SQL select statement.
      * @throws MapperException if the conversion fails.
      */
-    public static String toDeleteSql(Class<?> cls) throws MapperException {
+    public static String toSelectPageSql(Class<?> cls, int pageSize,
+                                         boolean first)
+        throws MapperException {
+
         ClassInfo info = getClassInfo(cls);
+        if (info.idField == null) {
+            throw new MapperException("Can't paginate objects " + cls
+                                      + " without an ID field");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size: "
+                                               + pageSize);
+        }
+
         StringBuilder sb = new StringBuilder();
 
-        sb.append("DELETE FROM ");
+        sb.append("SELECT * FROM ");
         sb.append(info.dbTableName);
-
-        FieldInfo idField = null;
-
-        for (FieldInfo field : info.fields) {
-            if (field.isId) {
-                idField = field;
-                break;
-            }
-        }
-
-        if (idField == null) {
-            throw new MapperException("Can't delete object " + cls
-                                      + " without an ID field");
+        if (!first) {
+            sb.append(" WHERE ");
+            sb.append(info.idField.dbName);
+            sb.append(">?");
         }
-
-        sb.append(" WHERE ");
-        sb.append(idField.dbName);
-        sb.append("=?");
+        sb.append(" ORDER BY ");
+        sb.append(info.idField.dbName);
+        sb.append(" LIMIT ");
+        sb.append(pageSize);
 
         return sb.toString();
     }
@@ -702,39 +2445,62 @@ public class Mapper {
     public static Object[] toSqlParams(Object object, boolean appendId,
                                        Object[] tailParams)
         throws MapperException {
+        return toSqlParams(object, null, appendId, tailParams);
+    }
+
+    /**
+     * Converts the object to the SQL update statement parameters for
+     * the argument columns. The parameters are the values
+     * <tt>bindSqlParams</tt> binds with the same arguments.
+     *
+     * @param object the object to convert
+     * @param columns the columns to convert as returned by
+     * <tt>getChangedFields</tt> or <tt>null</tt> to convert all
+     * columns.
+     * @param appendId specifies if the object ID field is appended to
+     * the paramters array.
+     * @param tailParams optional extra params to be appended to the
+     * parameter list.
+     * @return the SQL update statement parameters.
+     * @throws MapperException if the conversion fails.
+     */
+    public static Object[] toSqlParams(Object object, BitSet columns,
+                                       boolean appendId, Object[] tailParams)
+        throws MapperException {
 
         ClassInfo info = getClassInfo(object.getClass());
-        ArrayList<Object> params = new ArrayList<>();
+        FieldInfo[] fields = info.writeFields;
+        int count = columns == null ? fields.length : columns.cardinality();
+
+        if (appendId) {
+            if (info.idField == null) {
+                throw new MapperException("No ID field found for object "
+                                          + object.getClass());
+            }
+            count++;
+        }
+        if (tailParams != null) {
+            count += tailParams.length;
+        }
+
+        Object[] params = new Object[count];
 
         try {
-            FieldInfo idField = null;
-            for (FieldInfo field : info.fields) {
-                if (field.isId) {
-                    idField = field;
-                    if (field.idAutoAssign) {
-                        continue;
-                    }
-                }
-                if (field.readOnly) {
+            int i = 0;
+            for (int j = 0; j < fields.length; j++) {
+                if (columns != null && !columns.get(j)) {
                     continue;
                 }
-                params.add(field.field.get(object));
+                params[i++] = fields[j].field.get(object);
             }
             if (appendId) {
-                if (idField == null) {
-                    throw new MapperException("No ID field found for object "
-                                              + object.getClass());
-                }
-                params.add(idField.field.get(object));
+                params[i++] = info.idField.field.get(object);
             }
-
             if (tailParams != null) {
-                for (Object p : tailParams) {
-                    params.add(p);
-                }
+                System.arraycopy(tailParams, 0, params, i, tailParams.length);
             }
 
-            return params.toArray(new Object[params.size()]);
+            return params;
         } catch (IllegalAccessException e) {
             throw new MapperException("Failed to convert object to SQL values",
                                       e);
@@ -744,31 +2510,291 @@ public class Mapper {
     public static Object[] toIdParams(Object object)
         throws MapperException {
         ClassInfo info = getClassInfo(object.getClass());
-        ArrayList<Object> params = new ArrayList<>();
+        if (info.idField == null) {
+            throw new MapperException("No ID field found for object "
+                                      + object.getClass());
+        }
 
         try {
-            FieldInfo idField = null;
+            return new Object[] { info.idField.field.get(object) };
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to convert object to SQL values",
+                                      e);
+        }
+    }
 
-            for (FieldInfo field : info.fields) {
-                if (field.isId) {
-                    idField = field;
-                    break;
+    /**
+     * Binds the object's SQL insert and update statement parameters
+     * to the prepared statement.
+     *
+     * @param stmt the prepared statement.
+     * @param object the object to bind.
+     * @param appendId specifies if the object ID field is bound after
+     * the insert and update parameters.
+     * @param tailParams optional extra params to be bound after the
+     * object parameters.
+     * @return the number of parameters bound.
+     * @throws MapperException if the binding fails.
+     */
+    public static int bindSqlParams(PreparedStatement stmt, Object object,
+                                    boolean appendId, Object[] tailParams)
+        throws MapperException {
+        return bindSqlParams(stmt, object, null, appendId, tailParams);
+    }
+
+    /**
+     * Binds the object's SQL update statement parameters for the
+     * argument columns to the prepared statement.
+     *
+     * @param stmt the prepared statement.
+     * @param object the object to bind.
+     * @param columns the columns to bind as returned by
+     * <tt>getChangedFields</tt> or <tt>null</tt> to bind all columns.
+     * @param appendId specifies if the object ID field is bound after
+     * the insert and update parameters.
+     * @param tailParams optional extra params to be bound after the
+     * object parameters.
+     * @return the number of parameters bound.
+     * @throws MapperException if the binding fails.
+     */
+    public static int bindSqlParams(PreparedStatement stmt, Object object,
+                                    BitSet columns, boolean appendId,
+                                    Object[] tailParams)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        FieldInfo[] fields = info.writeFields;
+        FieldInfo fi = null;
+        int index = 1;
+
+        if (appendId && info.idField == null) {
+            throw new MapperException("No ID field found for object "
+                                      + object.getClass());
+        }
+
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                if (columns != null && !columns.get(i)) {
+                    continue;
                 }
+                fi = fields[i];
+                fi.bind(stmt, index++, object);
             }
-
-            if (idField == null) {
-                throw new MapperException("No ID field found for object "
-                                          + object.getClass());
+            if (appendId) {
+                fi = info.idField;
+                fi.bind(stmt, index++, object);
+            }
+            fi = null;
+            if (tailParams != null) {
+                for (Object p : tailParams) {
+                    stmt.setObject(index++, p);
+                }
             }
-            params.add(idField.field.get(object));
 
-            return params.toArray(new Object[params.size()]);
+            return index - 1;
         } catch (IllegalAccessException e) {
-            throw new MapperException("Failed to convert object to SQL values",
+            throw new MapperException("Failed to get object field "
+                                      + fi.field.getName(), e);
+        } catch (SQLException e) {
+            throw new MapperException("Failed to bind "
+                                      + (fi == null
+                                         ? "SQL parameter"
+                                         : "object field "
+                                         + fi.field.getName()),
                                       e);
         }
     }
 
+    /**
+     * Binds the object's ID field to the first parameter of the
+     * prepared statement.
+     *
+     * @param stmt the prepared statement.
+     * @param object the object to bind.
+     * @throws MapperException if the binding fails.
+     */
+    public static void bindIdParams(PreparedStatement stmt, Object object)
+        throws MapperException {
+        bindIdParam(stmt, 1, object);
+    }
+
+    /**
+     * Binds the object's ID field to the argument parameter of the
+     * prepared statement.
+     *
+     * @param stmt the prepared statement.
+     * @param index the statement parameter index.
+     * @param object the object to bind.
+     * @throws MapperException if the binding fails.
+     */
+    public static void bindIdParam(PreparedStatement stmt, int index,
+                                   Object object)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        if (info.idField == null) {
+            throw new MapperException("No ID field found for object "
+                                      + object.getClass());
+        }
+
+        try {
+            info.idField.bind(stmt, index, object);
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to get object field "
+                                      + info.idField.field.getName(), e);
+        } catch (SQLException e) {
+            throw new MapperException("Failed to bind object field "
+                                      + info.idField.field.getName(), e);
+        }
+    }
+
+    /**
+     * Reads a UUID column. Native uuid columns are returned as
+     * <tt>UUID</tt> objects and character columns are parsed, so
+     * this reads the values <tt>bind</tt> writes to either.
+     *
+     * @param rs the result set.
+     * @param column the column index.
+     * @return the UUID or <tt>null</tt> if the column is null.
+     * @throws SQLException if the column can't be read.
+     */
+    public static UUID getUuid(ResultSet rs, int column)
+        throws SQLException {
+        Object val = rs.getObject(column);
+        if (val == null || val instanceof UUID) {
+            return (UUID) val;
+        }
+        return UUID.fromString(val.toString());
+    }
+
+    /**
+     * Binds a null UUID parameter with the parameter's SQL type.
+     * <tt>Types.OTHER</tt> is needed for native uuid columns but
+     * character columns reject it on some drivers, so the type is
+     * taken from the parameter metadata if the driver provides it.
+     *
+     * @param stmt the prepared statement.
+     * @param index the statement parameter index.
+     * @throws SQLException if the binding fails.
+     */
+    public static void setNullUuid(PreparedStatement stmt, int index)
+        throws SQLException {
+        int type;
+        try {
+            type = stmt.getParameterMetaData().getParameterType(index);
+        } catch (SQLException|AbstractMethodError e) {
+            type = Types.VARCHAR;
+        }
+        if (type == Types.NULL) {
+            type = Types.VARCHAR;
+        }
+        stmt.setNull(index, type);
+    }
+
+    /**
+     * Records the object's current field values as its database
+     * state. This does nothing if the object's class does not declare
+     * a <tt>Snapshot</tt> field.
+     *
+     * @param object the object.
+     * @throws MapperException if the field values can't be read.
+     */
+    public static void snapshot(Object object) throws MapperException {
+        snapshot(getClassInfo(object.getClass()), object);
+    }
+
+    private static void snapshot(ClassInfo info, Object object)
+        throws MapperException {
+        if (info.snapshotField == null) {
+            return;
+        }
+
+        FieldInfo[] fields = info.writeFields;
+        Object[] values = new Object[fields.length];
+
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].snapshot(object);
+            }
+            info.snapshotField.set(object, new Snapshot(values));
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to snapshot object "
+                                      + object.getClass(), e);
+        }
+    }
+
+    /**
+     * Gets the write fields of the object which have changed since
+     * its last snapshot.
+     *
+     * @param object the object.
+     * @return the indices of the changed fields or <tt>null</tt> if
+     * the object is not tracked or has no snapshot.
+     * @throws MapperException if the field values can't be read.
+     */
+    public static BitSet getChangedFields(Object object)
+        throws MapperException {
+
+        ClassInfo info = getClassInfo(object.getClass());
+        if (info.snapshotField == null) {
+            return null;
+        }
+
+        try {
+            Snapshot snapshot = (Snapshot) info.snapshotField.get(object);
+            if (snapshot == null) {
+                return null;
+            }
+
+            FieldInfo[] fields = info.writeFields;
+            BitSet changed = new BitSet(fields.length);
+
+            for (int i = 0; i < fields.length; i++) {
+                if (!fields[i].equalsSnapshot(object, snapshot.values[i])) {
+                    changed.set(i);
+                }
+            }
+
+            return changed;
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to read snapshot of object "
+                                      + object.getClass(), e);
+        }
+    }
+
+    /**
+     * Tests if the class has an ID field.
+     *
+     * @param cls the class.
+     * @return <tt>true</tt> if the class has an ID field.
+     * @throws MapperException if the class can't be mapped.
+     */
+    public static boolean hasIdField(Class<?> cls) throws MapperException {
+        return getClassInfo(cls).idField != null;
+    }
+
+    /**
+     * Gets the value of the object's ID field.
+     *
+     * @param object the object.
+     * @return the object ID.
+     * @throws MapperException if the object has no ID field.
+     */
+    public static Object getId(Object object) throws MapperException {
+        ClassInfo info = getClassInfo(object.getClass());
+        if (info.idField == null) {
+            throw new MapperException("No ID field found for object "
+                                      + object.getClass());
+        }
+
+        try {
+            return info.idField.field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new MapperException("Failed to get object field "
+                                      + info.idField.field.getName(), e);
+        }
+    }
+
     public static void toCsvHeader(Class<?> cls, CSVBuilder cb)
         throws MapperException {
         ClassInfo info = getClassInfo(cls);
@@ -794,6 +2820,10 @@ public class Mapper {
             Object val;
 
             for (FieldInfo field : info.fields) {
+                if (field.mapper != null
+                    && field.mapper.toCsv(object, field.mapperIndex, cb)) {
+                    continue;
+                }
                 switch (field.type) {
                 case INT:
                     cb.append(field.field.getInt(object));
@@ -806,6 +2836,12 @@ public class Mapper {
                 case INTEGER:
                 case CHARACTER:
                 case STRING:
+                case LONG_OBJECT:
+                case SHORT_OBJECT:
+                case BYTE_OBJECT:
+                case FLOAT_OBJECT:
+                case DOUBLE_OBJECT:
+                case UUID:
                     val = field.field.get(object);
                     if (val == null) {
                         cb.append();
@@ -818,6 +2854,53 @@ public class Mapper {
                     cb.append(field.field.getBoolean(object));
                     break;
 
+                case LONG:
+                    cb.append(field.field.getLong(object));
+                    break;
+
+                case SHORT:
+                    cb.append(field.field.getShort(object));
+                    break;
+
+                case BYTE:
+                    cb.append(field.field.getByte(object));
+                    break;
+
+                case FLOAT:
+                    cb.append(field.field.getFloat(object));
+                    break;
+
+                case DOUBLE:
+                    cb.append(field.field.getDouble(object));
+                    break;
+
+                case BIG_DECIMAL:
+                    val = field.field.get(object);
+                    if (val == null) {
+                        cb.append();
+                    } else {
+                        cb.append(((BigDecimal) val).toPlainString());
+                    }
+                    break;
+
+                case BYTES:
+                    val = field.field.get(object);
+                    if (val == null) {
+                        cb.append();
+                    } else {
+                        cb.append(Base64.encodeBase64String((byte[]) val));
+                    }
+                    break;
+
+                case ENUM:
+                    val = field.field.get(object);
+                    if (val == null) {
+                        cb.append();
+                    } else {
+                        cb.append(((Enum<?>) val).name());
+                    }
+                    break;
+
                 case DATE:
                     Date date = (Date) field.field.get(object);
                     if (date == null) {
@@ -825,7 +2908,11 @@ public class Mapper {
                     } else if (field.dateFormat == null) {
                         cb.append(date.getTime());
                     } else {
-                        cb.append(field.dateFormat.format(date));
+                        /* The format is shared with other fields and
+                           threads. */
+                        synchronized (field.dateFormat) {
+                            cb.append(field.dateFormat.format(date));
+                        }
                     }
                     break;
                 }
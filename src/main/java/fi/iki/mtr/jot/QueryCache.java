@@ -0,0 +1,350 @@
+/*
+
+  QueryCache.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+package fi.iki.mtr.jot;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache for mapped query results keyed by the SQL statement and its
+ * parameters. The results are invalidated when the table the query
+ * reads from is written. Concurrent misses of the same query wait for
+ * the first caller to load the result instead of all querying the
+ * database.
+ *
+ * <p>The cached result lists are read-only and their objects are
+ * shared between all callers.
+ */
+public class QueryCache {
+    /** Loads a query result on cache miss. */
+    public interface Loader<T> {
+        List<T> load() throws IOException;
+    }
+
+    private static class Key {
+        String table;
+        String sql;
+        Object[] params;
+        int hash;
+
+        Key(String table, String sql, Object[] params) {
+            this.table = table;
+            this.sql = sql;
+            this.params = params == null ? new Object[0] : params.clone();
+            hash = sql.hashCode() * 31 + Arrays.hashCode(this.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && table.equals(k.table)
+                && sql.equals(k.sql) && Arrays.equals(params, k.params);
+        }
+    }
+
+    private static class Entry {
+        List<?> value;
+        long expires;
+
+        Entry(List<?> value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /** An in-progress load which other callers can wait for. */
+    private static class Flight {
+        private boolean done;
+        private List<?> value;
+        private Throwable error;
+
+        synchronized void complete(List<?> value, Throwable error) {
+            this.value = value;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized List<?> await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            if (error != null) {
+                throw new IOException("Query failed", error);
+            }
+            return value;
+        }
+    }
+
+    /** The maximum number of cached results. */
+    private int maxSize;
+
+    /** The result time-to-live in milliseconds. */
+    private long ttl;
+
+    private LinkedHashMap<Key, Entry> entries;
+    private HashMap<String, HashSet<Key>> keysByTable;
+    private HashMap<Key, Flight> loading;
+
+    /** Table versions which are incremented on invalidation. */
+    private HashMap<String, Long> versions;
+
+    /** Clear counter which is incremented by <tt>clear</tt>. */
+    private long epoch;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * Creates a new query cache.
+     *
+     * @param maxSize the maximum number of cached results.
+     * @param ttl the result time-to-live in milliseconds.
+     */
+    public QueryCache(int maxSize, long ttl) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid cache size: "
+                                               + maxSize);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+        }
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        keysByTable = new HashMap<>();
+        loading = new HashMap<>();
+        versions = new HashMap<>();
+    }
+
+    /**
+     * Gets the query result from the cache or loads it with the
+     * loader.
+     *
+     * @param table the table the query reads from.
+     * @param sql the SQL query.
+     * @param params the query parameters.
+     * @param loader the loader for the query result.
+     * @return the query result.
+     * @throws IOException if the loader fails.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(String table, String sql, Object[] params,
+                           Loader<T> loader)
+        throws IOException {
+
+        Key key = new Key(table, sql, params);
+        Flight flight;
+        long version;
+        long epoch = 0;
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expires > System.currentTimeMillis()) {
+                    hits++;
+                    return (List<T>) entry.value;
+                }
+                remove(key);
+            }
+            misses++;
+
+            flight = loading.get(key);
+            if (flight != null) {
+                version = -1;
+            } else {
+                flight = new Flight();
+                loading.put(key, flight);
+                version = getVersion(table);
+                epoch = this.epoch;
+            }
+        }
+        if (version < 0) {
+            return (List<T>) flight.await();
+        }
+
+        List<T> result;
+        try {
+            result = Collections.unmodifiableList(loader.load());
+        } catch (IOException|RuntimeException e) {
+            synchronized (this) {
+                if (loading.get(key) == flight) {
+                    loading.remove(key);
+                }
+            }
+            flight.complete(null, e);
+            throw e;
+        }
+
+        synchronized (this) {
+            if (loading.get(key) == flight) {
+                loading.remove(key);
+            }
+            // Loads which started before an invalidation or a clear
+            // may have read old rows.
+            if (getVersion(table) == version && this.epoch == epoch) {
+                put(key, result);
+            }
+        }
+        flight.complete(result, null);
+
+        return result;
+    }
+
+    /**
+     * Invalidates all cached results of the table.
+     *
+     * @param table the table name.
+     */
+    public synchronized void invalidate(String table) {
+        versions.put(table, getVersion(table) + 1);
+        invalidations++;
+
+        HashSet<Key> keys = keysByTable.remove(table);
+        if (keys != null) {
+            for (Key key : keys) {
+                entries.remove(key);
+            }
+        }
+
+        Iterator<Key> iter = loading.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().table.equals(table)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all results from the cache. Loads in progress complete
+     * for their callers but their results are not cached.
+     */
+    public synchronized void clear() {
+        epoch++;
+        entries.clear();
+        keysByTable.clear();
+        loading.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+
+        return String.format("size=%d, hits=%d, misses=%d, hitRatio=%.2f, "
+                             + "invalidations=%d",
+                             entries.size(), hits, misses,
+                             total == 0 ? 0.0 : (double) hits / total,
+                             invalidations);
+    }
+
+    private long getVersion(String table) {
+        Long version = versions.get(table);
+        return version == null ? 0 : version.longValue();
+    }
+
+    private void put(Key key, List<?> value) {
+        entries.put(key, new Entry(value,
+                                   System.currentTimeMillis() + ttl));
+
+        HashSet<Key> keys = keysByTable.get(key.table);
+        if (keys == null) {
+            keys = new HashSet<>();
+            keysByTable.put(key.table, keys);
+        }
+        keys.add(key);
+
+        while (entries.size() > maxSize) {
+            Iterator<Map.Entry<Key, Entry>> iter
+                = entries.entrySet().iterator();
+            Key eldest = iter.next().getKey();
+            iter.remove();
+            removeTableKey(eldest);
+        }
+    }
+
+    private void remove(Key key) {
+        entries.remove(key);
+        removeTableKey(key);
+    }
+
+    private void removeTableKey(Key key) {
+        HashSet<Key> keys = keysByTable.get(key.table);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByTable.remove(key.table);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+
+  QueryStatistics.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+package fi.iki.mtr.jot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-statement execution statistics and slow query log. The
+ * statistics are keyed by the SQL statement text.
+ */
+public class QueryStatistics {
+    private static Logger log = LoggerFactory.getLogger(QueryStatistics.class);
+
+    /** The upper bounds of the latency histogram buckets in milliseconds. */
+    private static final long[] BUCKETS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,
+    };
+
+    /** Statistics of one SQL statement. */
+    public static class Entry {
+        private String sql;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long rows;
+
+        /** Latency histogram with a final bucket for overflow. */
+        private long[] histogram = new long[BUCKETS.length + 1];
+
+        Entry(String sql) {
+            this.sql = sql;
+        }
+
+        synchronized void record(long nanos, int rows) {
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+            this.rows += rows;
+
+            long millis = nanos / 1000000;
+            int i;
+            for (i = 0; i < BUCKETS.length; i++) {
+                if (millis < BUCKETS[i]) {
+                    break;
+                }
+            }
+            histogram[i]++;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        /**
+         * Gets the latency histogram. Bucket <i>i</i> counts the
+         * executions faster than <tt>getBucketBounds()[i]</tt>
+         * milliseconds and the last bucket counts the slower ones.
+         *
+         * @return a copy of the histogram.
+         */
+        public synchronized long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append(String.format("count=%d, total=%.3fms, avg=%.3fms, "
+                                    + "max=%.3fms, rows=%d, histogram=",
+                                    count, totalNanos / 1e6,
+                                    count == 0 ? 0.0
+                                    : totalNanos / 1e6 / count,
+                                    maxNanos / 1e6, rows));
+            for (int i = 0; i < histogram.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if (i < BUCKETS.length) {
+                    sb.append('<').append(BUCKETS[i]);
+                } else {
+                    sb.append(">=").append(BUCKETS[BUCKETS.length - 1]);
+                }
+                sb.append("ms:").append(histogram[i]);
+            }
+            sb.append(": ").append(sql);
+
+            return sb.toString();
+        }
+    }
+
+    private ConcurrentHashMap<String, Entry> entries;
+
+    /** The slow query threshold in nanoseconds or 0 if disabled. */
+    private volatile long slowThreshold;
+
+    public QueryStatistics() {
+        entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the upper bounds of the latency histogram buckets.
+     *
+     * @return the bounds in milliseconds.
+     */
+    public static long[] getBucketBounds() {
+        return BUCKETS.clone();
+    }
+
+    /**
+     * Sets the slow query threshold. Statements running at least
+     * the threshold are logged with their parameters.
+     *
+     * @param millis the threshold in milliseconds or 0 to disable the
+     * slow query log.
+     */
+    public void setSlowQueryThreshold(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + millis);
+        }
+        slowThreshold = millis * 1000000;
+    }
+
+    /**
+     * Tests if the execution time exceeds the slow query threshold.
+     *
+     * @param nanos the execution time in nanoseconds.
+     * @return <tt>true</tt> if the execution is slow.
+     */
+    public boolean isSlow(long nanos) {
+        long threshold = slowThreshold;
+        return threshold > 0 && nanos >= threshold;
+    }
+
+    /**
+     * Records a statement execution.
+     *
+     * @param sql the SQL statement.
+     * @param nanos the execution time in nanoseconds.
+     * @param rows the number of rows returned or updated.
+     */
+    public void record(String sql, long nanos, int rows) {
+        Entry entry = entries.get(sql);
+        if (entry == null) {
+            entry = new Entry(sql);
+            Entry old = entries.putIfAbsent(sql, entry);
+            if (old != null) {
+                entry = old;
+            }
+        }
+        entry.record(nanos, rows);
+    }
+
+    /**
+     * Logs a slow statement execution.
+     *
+     * @param sql the SQL statement.
+     * @param nanos the execution time in nanoseconds.
+     * @param rows the number of rows returned or updated.
+     * @param params the statement parameters.
+     */
+    public void logSlow(String sql, long nanos, int rows, String params) {
+        /* Microsecond precision is enough for the log. */
+        log.warn("Slow query: {}ms, rows={}, sql={}, params={}",
+                 nanos / 1000 / 1e3, rows, sql, params);
+    }
+
+    /**
+     * Gets the statistics entries sorted by their total execution
+     * time in descending order.
+     *
+     * @return the entries.
+     */
+    public List<Entry> getEntries() {
+        ArrayList<Entry> result = new ArrayList<>(entries.values());
+
+        Collections.sort(result, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(b.getTotalNanos(),
+                                        a.getTotalNanos());
+                }
+            });
+
+        return result;
+    }
+
+    /** Clears all statistics. */
+    public void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Dumps the statistics, one statement per line, sorted by their
+     * total execution time.
+     *
+     * @return the statistics dump.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Entry entry : getEntries()) {
+            sb.append(entry.toString());
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+
+  RecordMapper.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+package fi.iki.mtr.jot;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.json.JSONObject;
+
+/**
+ * Compile-time generated field access for a record class. The
+ * mappers are generated by <tt>RecordProcessor</tt> and
+ * <tt>Mapper</tt> loads them automatically when they are present. The
+ * fields are identified by their indices in <tt>getFieldNames</tt>.
+ * The methods return <tt>false</tt> for fields which they don't
+ * handle and <tt>Mapper</tt> then uses reflection for the field.
+ *
+ * <p>The mappers remove reflection from the per-row field access of
+ * JDBC reads and binds and of CSV and JSON output only. CSV, XML and
+ * JSON input and XML output still set and get the fields with
+ * reflection. <tt>Mapper</tt> also builds its class metadata and SQL
+ * statements and looks up the mapper class with reflection, so a
+ * mapper does not shorten the first use of a record class and does
+ * not remove the need for reflection configuration in native images.
+ */
+public interface RecordMapper<T> {
+    /** The suffix of the generated mapper class names. */
+    String CLASS_SUFFIX = "_JotMapper";
+
+    /**
+     * Gets the names of the fields handled by the mapper.
+     *
+     * @return the field names.
+     */
+    String[] getFieldNames();
+
+    boolean read(T object, ResultSet rs, int column, int field)
+        throws SQLException;
+
+    boolean bind(PreparedStatement stmt, int index, T object, int field)
+        throws SQLException;
+
+    boolean toCsv(T object, int field, CSVBuilder cb);
+
+    boolean toJson(T object, int field, String name, JSONObject json);
+}
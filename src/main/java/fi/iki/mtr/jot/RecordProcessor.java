@@ -0,0 +1,574 @@
+/*
+
+  RecordProcessor.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+package fi.iki.mtr.jot;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Annotation processor generating a <tt>RecordMapper</tt> for each
+ * <tt>@Record</tt> class. The generated mappers access the public
+ * fields directly instead of through reflection when binding
+ * statement parameters, reading result sets, and writing CSV and
+ * JSON. Other conversions, the class metadata and the SQL statements
+ * still use reflection, see <tt>RecordMapper</tt>.
+ *
+ * <p>The processor is not registered as a service, so it must be
+ * enabled explicitly with <tt>-processor
+ * fi.iki.mtr.jot.RecordProcessor</tt> when compiling the record
+ * classes.
+ */
+@SupportedAnnotationTypes("fi.iki.mtr.jot.Record")
+public class RecordProcessor extends AbstractProcessor {
+
+    /** The supported field types, see <tt>Mapper.Type</tt>. */
+    private enum Kind {
+        INT, INTEGER, CHAR, CHARACTER, STRING, BOOLEAN, DATE, LONG,
+        LONG_OBJECT, SHORT, SHORT_OBJECT, BYTE, BYTE_OBJECT, FLOAT,
+        FLOAT_OBJECT, DOUBLE, DOUBLE_OBJECT, BIG_DECIMAL, BYTES, UUID,
+        ENUM
+    }
+
+    private static class FieldModel {
+        String name;
+        String type;
+        Kind kind;
+        boolean dateFormat;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment env) {
+        for (Element element : env.getElementsAnnotatedWith(Record.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (!isAccessible(type)) {
+                processingEnv.getMessager().printMessage(
+                        Diagnostic.Kind.NOTE,
+                        "Record class is not accessible, using reflection",
+                        type);
+                continue;
+            }
+            try {
+                generate(type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(
+                        Diagnostic.Kind.ERROR,
+                        "Failed to generate mapper: " + e.getMessage(),
+                        type);
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isAccessible(TypeElement type) {
+        Element e = type;
+        while (e instanceof TypeElement) {
+            TypeElement t = (TypeElement) e;
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (t.getNestingKind() == NestingKind.MEMBER
+                && !t.getModifiers().contains(Modifier.STATIC)) {
+                return false;
+            }
+            if (t.getNestingKind() == NestingKind.LOCAL
+                || t.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            e = t.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private List<FieldModel> getFields(TypeElement type) {
+        ArrayList<FieldModel> result = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+
+        for (TypeElement t = type; t != null; ) {
+            for (VariableElement var
+                     : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                Set<Modifier> modifiers = var.getModifiers();
+                String name = var.getSimpleName().toString();
+
+                if (!modifiers.contains(Modifier.PUBLIC)
+                    || modifiers.contains(Modifier.STATIC)
+                    || modifiers.contains(Modifier.FINAL)
+                    || !seen.add(name)) {
+                    continue;
+                }
+
+                FieldModel field = new FieldModel();
+                field.name = name;
+                field.kind = getKind(var.asType());
+                if (field.kind == null) {
+                    continue;
+                }
+                field.type = getTypeName(var.asType());
+
+                Field ann = var.getAnnotation(Field.class);
+                field.dateFormat = ann != null && !ann.dateFormat().isEmpty();
+
+                result.add(field);
+            }
+
+            TypeMirror sup = t.getSuperclass();
+            if (sup.getKind() != TypeKind.DECLARED) {
+                break;
+            }
+            t = (TypeElement) ((DeclaredType) sup).asElement();
+        }
+
+        return result;
+    }
+
+    private String getTypeName(TypeMirror type) {
+        if (type.getKind() == TypeKind.DECLARED) {
+            Element e = ((DeclaredType) type).asElement();
+            return ((TypeElement) e).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private Kind getKind(TypeMirror type) {
+        switch (type.getKind()) {
+        case INT:
+            return Kind.INT;
+        case CHAR:
+            return Kind.CHAR;
+        case BOOLEAN:
+            return Kind.BOOLEAN;
+        case LONG:
+            return Kind.LONG;
+        case SHORT:
+            return Kind.SHORT;
+        case BYTE:
+            return Kind.BYTE;
+        case FLOAT:
+            return Kind.FLOAT;
+        case DOUBLE:
+            return Kind.DOUBLE;
+
+        case ARRAY:
+            if (((ArrayType) type).getComponentType().getKind()
+                == TypeKind.BYTE) {
+                return Kind.BYTES;
+            }
+            return null;
+
+        case DECLARED:
+            TypeElement e = (TypeElement) ((DeclaredType) type).asElement();
+            if (e.getKind() == ElementKind.ENUM) {
+                return Kind.ENUM;
+            }
+            switch (e.getQualifiedName().toString()) {
+            case "java.lang.Integer":
+                return Kind.INTEGER;
+            case "java.lang.Character":
+                return Kind.CHARACTER;
+            case "java.lang.String":
+                return Kind.STRING;
+            case "java.util.Date":
+                return Kind.DATE;
+            case "java.lang.Long":
+                return Kind.LONG_OBJECT;
+            case "java.lang.Short":
+                return Kind.SHORT_OBJECT;
+            case "java.lang.Byte":
+                return Kind.BYTE_OBJECT;
+            case "java.lang.Float":
+                return Kind.FLOAT_OBJECT;
+            case "java.lang.Double":
+                return Kind.DOUBLE_OBJECT;
+            case "java.math.BigDecimal":
+                return Kind.BIG_DECIMAL;
+            case "java.util.UUID":
+                return Kind.UUID;
+            default:
+                return null;
+            }
+
+        default:
+            return null;
+        }
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        PackageElement pkg
+            = processingEnv.getElementUtils().getPackageOf(type);
+        String pkgName = pkg.getQualifiedName().toString();
+        String typeName = type.getQualifiedName().toString();
+        String simpleName = pkg.isUnnamed()
+            ? typeName : typeName.substring(pkgName.length() + 1);
+        String mapperName = simpleName.replace('.', '_')
+            + RecordMapper.CLASS_SUFFIX;
+        String mapperFullName = pkg.isUnnamed()
+            ? mapperName : pkgName + "." + mapperName;
+
+        List<FieldModel> fields = getFields(type);
+
+        JavaFileObject file = processingEnv.getFiler()
+            .createSourceFile(mapperFullName, type);
+        try (PrintWriter out = new PrintWriter(file.openWriter())) {
+            if (!pkg.isUnnamed()) {
+                out.printf("package %s;%n%n", pkgName);
+            }
+            out.printf("/** Generated by %s. */%n",
+                       RecordProcessor.class.getName());
+            out.printf("public final class %s%n", mapperName);
+            out.printf("    implements fi.iki.mtr.jot.RecordMapper<%s> {%n",
+                       typeName);
+
+            out.printf("    private static final String[] FIELDS = {%n");
+            for (FieldModel field : fields) {
+                out.printf("        \"%s\",%n", field.name);
+            }
+            out.printf("    };%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public String[] getFieldNames() {%n");
+            out.printf("        return FIELDS.clone();%n");
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public boolean read(%s object, "
+                       + "java.sql.ResultSet rs, int column, int field)%n",
+                       typeName);
+            out.printf("        throws java.sql.SQLException {%n");
+            writeSwitch(out, fields, 0);
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public boolean bind(java.sql.PreparedStatement "
+                       + "stmt, int index,%n");
+            out.printf("                        %s object, int field)%n",
+                       typeName);
+            out.printf("        throws java.sql.SQLException {%n");
+            writeSwitch(out, fields, 1);
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public boolean toCsv(%s object, int field,%n",
+                       typeName);
+            out.printf("                         "
+                       + "fi.iki.mtr.jot.CSVBuilder cb) {%n");
+            writeSwitch(out, fields, 2);
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public boolean toJson(%s object, int field, "
+                       + "String name,%n", typeName);
+            out.printf("                          "
+                       + "org.json.JSONObject json) {%n");
+            writeSwitch(out, fields, 3);
+            out.printf("    }%n");
+
+            out.printf("}%n");
+        }
+    }
+
+    private void writeSwitch(PrintWriter out, List<FieldModel> fields,
+                             int op) {
+        out.printf("        switch (field) {%n");
+        for (int i = 0; i < fields.size(); i++) {
+            FieldModel field = fields.get(i);
+            String code;
+
+            switch (op) {
+            case 0:
+                code = readCode(field);
+                break;
+            case 1:
+                code = bindCode(field);
+                break;
+            case 2:
+                code = csvCode(field);
+                break;
+            default:
+                code = jsonCode(field);
+                break;
+            }
+            if (code == null) {
+                continue;
+            }
+            out.printf("        case %d: {%n", i);
+            out.printf("            %s%n",
+                       String.format(code, "object." + field.name,
+                                     field.type));
+            out.printf("            return true;%n");
+            out.printf("        }%n");
+        }
+        out.printf("        default:%n");
+        out.printf("            return false;%n");
+        out.printf("        }%n");
+    }
+
+    /*
+     * The code templates below mirror the reflective implementations
+     * in Mapper. The first argument is the field access expression
+     * and the second the field type.
+     */
+
+    private static String readCode(FieldModel field) {
+        switch (field.kind) {
+        case INT:
+            return "%1$s = rs.getInt(column);";
+        case INTEGER:
+            return wasNull("int", "getInt", "Integer.valueOf(v)");
+        case CHAR:
+            return "%1$s = rs.getString(column).charAt(0);";
+        case CHARACTER:
+            return "String v = rs.getString(column); "
+                + "%1$s = v == null || v.isEmpty() "
+                + "? null : Character.valueOf(v.charAt(0));";
+        case STRING:
+            return "%1$s = rs.getString(column);";
+        case BOOLEAN:
+            return "%1$s = rs.getBoolean(column);";
+        case DATE:
+            return wasNull("long", "getLong", "new java.util.Date(v)");
+        case LONG:
+            return "%1$s = rs.getLong(column);";
+        case LONG_OBJECT:
+            return wasNull("long", "getLong", "Long.valueOf(v)");
+        case SHORT:
+            return "%1$s = rs.getShort(column);";
+        case SHORT_OBJECT:
+            return wasNull("short", "getShort", "Short.valueOf(v)");
+        case BYTE:
+            return "%1$s = rs.getByte(column);";
+        case BYTE_OBJECT:
+            return wasNull("byte", "getByte", "Byte.valueOf(v)");
+        case FLOAT:
+            return "%1$s = rs.getFloat(column);";
+        case FLOAT_OBJECT:
+            return wasNull("float", "getFloat", "Float.valueOf(v)");
+        case DOUBLE:
+            return "%1$s = rs.getDouble(column);";
+        case DOUBLE_OBJECT:
+            return wasNull("double", "getDouble", "Double.valueOf(v)");
+        case BIG_DECIMAL:
+            return "%1$s = rs.getBigDecimal(column);";
+        case BYTES:
+            return "%1$s = rs.getBytes(column);";
+        case UUID:
+            return "%1$s = fi.iki.mtr.jot.Mapper.getUuid(rs, column);";
+        case ENUM:
+            return "String v = rs.getString(column); "
+                + "%1$s = v == null ? null : %2$s.valueOf(v);";
+        default:
+            return null;
+        }
+    }
+
+    private static String wasNull(String type, String getter, String box) {
+        return type + " v = rs." + getter + "(column); "
+            + "%1$s = rs.wasNull() ? null : " + box + ";";
+    }
+
+    private static String bindCode(FieldModel field) {
+        switch (field.kind) {
+        case INT:
+            return "stmt.setInt(index, %1$s);";
+        case INTEGER:
+            return setNull("INTEGER", "setInt(index, v)");
+        case CHAR:
+            return "stmt.setString(index, String.valueOf(%1$s));";
+        case CHARACTER:
+            return setNull("CHAR", "setString(index, v.toString())");
+        case STRING:
+            return setNull("VARCHAR", "setString(index, v)");
+        case BOOLEAN:
+            return "stmt.setBoolean(index, %1$s);";
+        case DATE:
+            return setNull("BIGINT", "setLong(index, v.getTime())");
+        case LONG:
+            return "stmt.setLong(index, %1$s);";
+        case LONG_OBJECT:
+            return setNull("BIGINT", "setLong(index, v)");
+        case SHORT:
+            return "stmt.setShort(index, %1$s);";
+        case SHORT_OBJECT:
+            return setNull("SMALLINT", "setShort(index, v)");
+        case BYTE:
+            return "stmt.setByte(index, %1$s);";
+        case BYTE_OBJECT:
+            return setNull("TINYINT", "setByte(index, v)");
+        case FLOAT:
+            return "stmt.setFloat(index, %1$s);";
+        case FLOAT_OBJECT:
+            return setNull("REAL", "setFloat(index, v)");
+        case DOUBLE:
+            return "stmt.setDouble(index, %1$s);";
+        case DOUBLE_OBJECT:
+            return setNull("DOUBLE", "setDouble(index, v)");
+        case BIG_DECIMAL:
+            return setNull("DECIMAL", "setBigDecimal(index, v)");
+        case BYTES:
+            return setNull("VARBINARY", "setBytes(index, v)");
+        case UUID:
+            return "%2$s v = %1$s; if (v == null) { "
+                + "fi.iki.mtr.jot.Mapper.setNullUuid(stmt, index); } "
+                + "else { stmt.setObject(index, v); }";
+        case ENUM:
+            return setNull("VARCHAR", "setString(index, v.name())");
+        default:
+            return null;
+        }
+    }
+
+    private static String setNull(String sqlType, String setter) {
+        return "%2$s v = %1$s; if (v == null) { stmt.setNull(index, "
+            + "java.sql.Types." + sqlType + "); } else { stmt." + setter
+            + "; }";
+    }
+
+    private static String csvCode(FieldModel field) {
+        switch (field.kind) {
+        case INT:
+        case BOOLEAN:
+        case LONG:
+        case SHORT:
+        case BYTE:
+        case FLOAT:
+        case DOUBLE:
+            return "cb.append(%1$s);";
+        case CHAR:
+            return "cb.append((int) %1$s);";
+        case INTEGER:
+        case CHARACTER:
+        case STRING:
+        case LONG_OBJECT:
+        case SHORT_OBJECT:
+        case BYTE_OBJECT:
+        case FLOAT_OBJECT:
+        case DOUBLE_OBJECT:
+        case UUID:
+            return csvNull("v.toString()");
+        case BIG_DECIMAL:
+            return csvNull("v.toPlainString()");
+        case BYTES:
+            return csvNull("org.apache.commons.codec.binary.Base64"
+                           + ".encodeBase64String(v)");
+        case ENUM:
+            return csvNull("v.name()");
+        case DATE:
+            if (field.dateFormat) {
+                return null;
+            }
+            return csvNull("v.getTime()");
+        default:
+            return null;
+        }
+    }
+
+    private static String csvNull(String value) {
+        return "%2$s v = %1$s; if (v == null) { cb.append(); } else { "
+            + "cb.append(" + value + "); }";
+    }
+
+    private static String jsonCode(FieldModel field) {
+        switch (field.kind) {
+        case INT:
+        case BOOLEAN:
+        case LONG:
+        case DOUBLE:
+            return "json.put(name, %1$s);";
+        case CHAR:
+        case SHORT:
+        case BYTE:
+            return "json.put(name, (int) %1$s);";
+        case FLOAT:
+            return "json.put(name, (double) %1$s);";
+        case INTEGER:
+        case CHARACTER:
+        case STRING:
+        case LONG_OBJECT:
+        case SHORT_OBJECT:
+        case BYTE_OBJECT:
+        case FLOAT_OBJECT:
+        case DOUBLE_OBJECT:
+        case BIG_DECIMAL:
+            return jsonNull("v");
+        case BYTES:
+            return jsonNull("org.apache.commons.codec.binary.Base64"
+                            + ".encodeBase64String(v)");
+        case UUID:
+            return jsonNull("v.toString()");
+        case ENUM:
+            return jsonNull("v.name()");
+        case DATE:
+            return "%2$s v = %1$s; if (v != null) { "
+                + "json.put(name, v.getTime()); }";
+        default:
+            return null;
+        }
+    }
+
+    private static String jsonNull(String value) {
+        return "%2$s v = %1$s; json.put(name, v == null "
+            + "? org.json.JSONObject.NULL : (Object) " + value + ");";
+    }
+}
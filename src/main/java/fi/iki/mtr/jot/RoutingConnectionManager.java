@@ -0,0 +1,271 @@
+/*
+
+  RoutingConnectionManager.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+package fi.iki.mtr.jot;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection manager routing writes to the primary database and
+ * reads to replica databases. The manager's own pool connects to the
+ * primary database; <tt>getConnection</tt> returns primary
+ * connections for writes and transactions, and
+ * <tt>getReadConnection</tt> returns connections from the replica
+ * with the fewest outstanding connections. Replicas which fail to
+ * provide connections, or whose pooled connections fail validation,
+ * are taken out of rotation for a retry interval. If no replica is
+ * available, reads go to the primary.
+ */
+public class RoutingConnectionManager extends ConnectionManager {
+    private static Logger log
+        = LoggerFactory.getLogger(RoutingConnectionManager.class);
+
+    private static class Replica {
+        ConnectionManager manager;
+
+        /** The number of connections borrowed and not recycled. */
+        AtomicInteger outstanding = new AtomicInteger();
+
+        /** The time until which the replica is out of rotation. */
+        volatile long failedUntil;
+
+        Replica(ConnectionManager manager) {
+            this.manager = manager;
+        }
+    }
+
+    private Replica[] replicas;
+
+    /** The time in milliseconds a failed replica is out of rotation. */
+    private volatile long retryInterval = 30000;
+
+    /**
+     * The time in milliseconds reads are pinned to the primary after
+     * a write on the same thread, or 0 if reads are not pinned.
+     */
+    private volatile long readAfterWritePin;
+
+    /** The time of the latest write connection of each thread. */
+    private ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+
+    /**
+     * Creates a new routing connection manager.
+     *
+     * @param url the JDBC connection URL of the primary database.
+     * @param driver an optional JDBC driver.
+     * @param poolSize the primary connection pool size.
+     * @param replicas the connection managers of the replica
+     * databases.
+     */
+    public RoutingConnectionManager(String url, String driver, int poolSize,
+                                    List<ConnectionManager> replicas) {
+        super(url, driver, poolSize);
+
+        this.replicas = new Replica[replicas.size()];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new Replica(replicas.get(i));
+        }
+    }
+
+    /**
+     * Sets the time failed replicas are out of rotation.
+     *
+     * @param retryInterval the time in milliseconds.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Pins the reads of a thread to the primary database for a time
+     * after the thread has written, so that it reads its own writes
+     * regardless of replication lag.
+     *
+     * @param millis the pin time in milliseconds or 0 to disable
+     * pinning.
+     */
+    public void setReadAfterWritePin(long millis) {
+        readAfterWritePin = millis;
+    }
+
+    /**
+     * Clears the read pin of the current thread. Call this at the
+     * end of a request when threads are reused between requests.
+     */
+    public void unpin() {
+        lastWrite.remove();
+    }
+
+    @Override
+    public CachedConnection getConnection() throws SQLException {
+        if (readAfterWritePin > 0) {
+            lastWrite.set(System.currentTimeMillis());
+        }
+        return super.getConnection();
+    }
+
+    @Override
+    public CachedConnection getReadConnection() throws SQLException {
+        long pin = readAfterWritePin;
+        if (pin > 0) {
+            Long last = lastWrite.get();
+            if (last != null) {
+                if (System.currentTimeMillis() - last < pin) {
+                    return super.getConnection();
+                }
+                lastWrite.remove();
+            }
+        }
+
+        while (true) {
+            Replica replica = selectReplica();
+            if (replica == null) {
+                return super.getConnection();
+            }
+
+            long failures = replica.manager.getValidationFailures();
+            replica.outstanding.incrementAndGet();
+            CachedConnection conn;
+            try {
+                conn = replica.manager.getConnection();
+            } catch (SQLException e) {
+                replica.outstanding.decrementAndGet();
+                replica.failedUntil = System.currentTimeMillis()
+                    + retryInterval;
+                log.warn("Replica failed, taking it out of rotation", e);
+                continue;
+            }
+
+            /* Pooled connections failing validation mean that the
+               replica has dropped them, even if a new connection
+               could be opened in their place. */
+            if (replica.manager.getValidationFailures() != failures) {
+                recycle(conn);
+                replica.failedUntil = System.currentTimeMillis()
+                    + retryInterval;
+                log.warn("Replica connection failed validation, "
+                         + "taking it out of rotation");
+                continue;
+            }
+
+            return conn;
+        }
+    }
+
+    /**
+     * Selects the available replica with the fewest outstanding
+     * connections.
+     *
+     * @return the replica or <tt>null</tt> if no replicas are
+     * available.
+     */
+    private Replica selectReplica() {
+        long now = System.currentTimeMillis();
+        Replica best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+
+        for (Replica replica : replicas) {
+            if (replica.failedUntil > now) {
+                continue;
+            }
+            int outstanding = replica.outstanding.get();
+            if (outstanding < bestOutstanding) {
+                best = replica;
+                bestOutstanding = outstanding;
+            }
+        }
+
+        return best;
+    }
+
+    @Override
+    public void recycle(CachedConnection conn) {
+        for (Replica replica : replicas) {
+            if (conn.owner == replica.manager) {
+                replica.outstanding.decrementAndGet();
+                replica.manager.recycle(conn);
+                return;
+            }
+        }
+        super.recycle(conn);
+    }
+
+    @Override
+    public int getPoolSize() {
+        int size = super.getPoolSize();
+        for (Replica replica : replicas) {
+            size += replica.manager.getPoolSize();
+        }
+        return size;
+    }
+
+    @Override
+    public void setThreadAffinity(boolean threadAffinity) {
+        super.setThreadAffinity(threadAffinity);
+        for (Replica replica : replicas) {
+            replica.manager.setThreadAffinity(threadAffinity);
+        }
+    }
+
+    @Override
+    public void addWarmupStatement(String sql, int autoGeneratedKeys) {
+        super.addWarmupStatement(sql, autoGeneratedKeys);
+        for (Replica replica : replicas) {
+            replica.manager.addWarmupStatement(sql, autoGeneratedKeys);
+        }
+    }
+
+    @Override
+    public void warmup(int minIdle) throws SQLException {
+        super.warmup(minIdle);
+        for (Replica replica : replicas) {
+            replica.manager.warmup(minIdle);
+        }
+    }
+
+    @Override
+    public void setLeakDetection(long threshold, boolean trace,
+                                 boolean reclaim) {
+        super.setLeakDetection(threshold, trace, reclaim);
+        for (Replica replica : replicas) {
+            replica.manager.setLeakDetection(threshold, trace, reclaim);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+
+  XMLRecordReader.java
+
+  Copyright (c) 2016, Markku Rossi
+  All rights reserved.
+
+  BSD 2-Clause License:
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1. Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+  COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+
+*/
+package fi.iki.mtr.jot;
+
+import java.io.InputStream;
+import java.io.Reader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for a sequence of record elements. The records
+ * are bound with <tt>Mapper.read(Object, XMLStreamReader)</tt> one
+ * at a time without building a DOM, so the memory usage does not
+ * depend on the document size.
+ */
+public class XMLRecordReader<T> implements AutoCloseable {
+    private static XMLInputFactory factory;
+
+    private Class<T> cls;
+    private XMLStreamReader xml;
+    private String element;
+
+    /**
+     * Creates a record reader.
+     *
+     * @param cls the record class.
+     * @param xml the XML stream reader.
+     * @param element the local name of the record elements.
+     */
+    public XMLRecordReader(Class<T> cls, XMLStreamReader xml,
+                           String element) {
+        this.cls = cls;
+        this.xml = xml;
+        this.element = element;
+    }
+
+    public XMLRecordReader(Class<T> cls, InputStream in, String element)
+        throws MapperException {
+        this(cls, createReader(in, null), element);
+    }
+
+    public XMLRecordReader(Class<T> cls, Reader in, String element)
+        throws MapperException {
+        this(cls, createReader(null, in), element);
+    }
+
+    private static synchronized XMLInputFactory getFactory() {
+        if (factory == null) {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        }
+        return factory;
+    }
+
+    private static XMLStreamReader createReader(InputStream in, Reader r)
+        throws MapperException {
+        XMLInputFactory f = getFactory();
+        try {
+            synchronized (f) {
+                if (in != null) {
+                    return f.createXMLStreamReader(in);
+                }
+                return f.createXMLStreamReader(r);
+            }
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to create XML reader", e);
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the record or <tt>null</tt> if the document has no more
+     * record elements.
+     * @throws MapperException if the XML is invalid or the record
+     * can't be read.
+     */
+    public T next() throws MapperException {
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT
+                    && element.equals(xml.getLocalName())) {
+                    T obj = cls.newInstance();
+                    Mapper.read(obj, xml);
+                    return obj;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to read XML", e);
+        } catch (InstantiationException|IllegalAccessException e) {
+            throw new MapperException("Could not create object instance", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Closes the XML stream reader. The underlying input is not
+     * closed.
+     *
+     * @throws MapperException if closing the reader fails.
+     */
+    @Override
+    public void close() throws MapperException {
+        try {
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new MapperException("Failed to close XML reader", e);
+        }
+    }
+}